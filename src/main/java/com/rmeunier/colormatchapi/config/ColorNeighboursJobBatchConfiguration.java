@@ -0,0 +1,111 @@
+package com.rmeunier.colormatchapi.config;
+
+import org.springframework.batch.core.Job;
+import org.springframework.batch.core.Step;
+import org.springframework.batch.core.configuration.annotation.JobBuilderFactory;
+import org.springframework.batch.core.configuration.annotation.StepBuilderFactory;
+import org.springframework.batch.core.configuration.annotation.StepScope;
+import org.springframework.batch.core.launch.support.RunIdIncrementer;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+
+import java.time.Instant;
+
+/**
+ * The job computing the K closest products of every product into the product_color_neighbours table,
+ * so that color searches for up to K products do not have to rank anything.
+ * The products are partitioned into ranges processed in parallel on the taskExecutor pool.
+ * With the "since" job parameter (epoch millis of the last run, 0 for a full run), only the products whose
+ * neighbours may have changed since then are recomputed.
+ */
+@Configuration
+public class ColorNeighboursJobBatchConfiguration {
+
+    @Autowired
+    public JobBuilderFactory jobBuilderFactory;
+
+    @Autowired
+    public StepBuilderFactory stepBuilderFactory;
+
+    @Autowired
+    @Qualifier("taskExecutor")
+    private ThreadPoolTaskExecutor taskExecutor;
+
+    @Value("${color-neighbours.k:50}")
+    private int k;
+
+    @Value("${color-neighbours.grid-size:8}")
+    private int gridSize;
+
+    @Bean
+    public Job colorNeighboursJob(ColorNeighboursJobCompletionNotificationListener listener,
+                                  Step colorNeighboursManagerStep) {
+        return jobBuilderFactory.get("colorNeighboursJob")
+                .incrementer(new RunIdIncrementer())
+                .listener(listener)
+                .start(colorNeighboursManagerStep)
+                .build();
+    }
+
+    @Bean
+    public ColorNeighboursJobCompletionNotificationListener colorNeighboursJobExecutionListener() {
+        return new ColorNeighboursJobCompletionNotificationListener();
+    }
+
+    /**
+     * The products to compute the neighbours of, shared by all partitions of a job execution.
+     * @return the ColorNeighboursTargets bean
+     */
+    @Bean
+    public ColorNeighboursTargets colorNeighboursTargets() {
+        return new ColorNeighboursTargets(k);
+    }
+
+    @Bean
+    @StepScope
+    public ColorNeighboursPartitioner colorNeighboursPartitioner(
+            @Value("#{stepExecution.jobExecutionId}") Long jobExecutionId,
+            @Value("#{jobParameters['since']}") Long since) {
+        return new ColorNeighboursPartitioner(colorNeighboursTargets().getIds(jobExecutionId, toInstant(since)));
+    }
+
+    @Bean
+    @StepScope
+    public ColorNeighboursTasklet colorNeighboursTasklet(@Value("#{stepExecution.jobExecutionId}") Long jobExecutionId,
+                                                         @Value("#{jobParameters['since']}") Long since,
+                                                         @Value("#{stepExecutionContext['from']}") Integer from,
+                                                         @Value("#{stepExecutionContext['to']}") Integer to) {
+        return new ColorNeighboursTasklet(colorNeighboursTargets().getIds(jobExecutionId, toInstant(since)),
+                from, to, k);
+    }
+
+    /**
+     * Spring Batch Step splitting the products into gridSize ranges, each run by a worker step on the taskExecutor.
+     * @return the Step object
+     */
+    @Bean
+    public Step colorNeighboursManagerStep() {
+        return stepBuilderFactory.get("colorNeighboursManagerStep")
+                .partitioner("colorNeighboursWorkerStep", colorNeighboursPartitioner(null, null))
+                .step(colorNeighboursWorkerStep())
+                .gridSize(gridSize)
+                // Multi-threaded execution
+                .taskExecutor(taskExecutor)
+                .build();
+    }
+
+    @Bean
+    public Step colorNeighboursWorkerStep() {
+        return stepBuilderFactory.get("colorNeighboursWorkerStep")
+                .tasklet(colorNeighboursTasklet(null, null, null, null))
+                .build();
+    }
+
+    private static Instant toInstant(Long since) {
+        return since == null || since == 0 ? null : Instant.ofEpochMilli(since);
+    }
+}
@@ -0,0 +1,27 @@
+package com.rmeunier.colormatchapi.config;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.batch.core.BatchStatus;
+import org.springframework.batch.core.JobExecution;
+import org.springframework.batch.core.listener.JobExecutionListenerSupport;
+import org.springframework.beans.factory.annotation.Autowired;
+
+public class ColorNeighboursJobCompletionNotificationListener extends JobExecutionListenerSupport {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ColorNeighboursJobCompletionNotificationListener.class);
+
+    @Autowired
+    private ColorNeighboursTargets colorNeighboursTargets;
+
+    @Override
+    public void afterJob(JobExecution jobExecution) {
+        colorNeighboursTargets.release(jobExecution.getId());
+
+        if (jobExecution.getStatus() == BatchStatus.COMPLETED) {
+            LOGGER.info("Color neighbours computation job is finished.");
+        } else {
+            LOGGER.error("Color neighbours computation job ended with status {}", jobExecution.getStatus());
+        }
+    }
+}
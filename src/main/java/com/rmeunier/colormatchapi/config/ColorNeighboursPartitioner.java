@@ -0,0 +1,37 @@
+package com.rmeunier.colormatchapi.config;
+
+import org.springframework.batch.core.partition.support.Partitioner;
+import org.springframework.batch.item.ExecutionContext;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Splits the products of a colorNeighboursJob run into gridSize contiguous ranges,
+ * given to the worker steps as the from (inclusive) and to (exclusive) positions in the targets.
+ */
+public class ColorNeighboursPartitioner implements Partitioner {
+
+    private final List<String> targetIds;
+
+    public ColorNeighboursPartitioner(List<String> targetIds) {
+        this.targetIds = targetIds;
+    }
+
+    @Override
+    public Map<String, ExecutionContext> partition(int gridSize) {
+        int size = targetIds.size();
+        int partitions = Math.max(Math.min(gridSize, size), 1);
+        Map<String, ExecutionContext> contexts = new HashMap<>();
+
+        for (int i = 0; i < partitions; i++) {
+            ExecutionContext context = new ExecutionContext();
+            context.putInt("from", (int) ((long) size * i / partitions));
+            context.putInt("to", (int) ((long) size * (i + 1) / partitions));
+            contexts.put("partition" + i, context);
+        }
+
+        return contexts;
+    }
+}
@@ -0,0 +1,72 @@
+package com.rmeunier.colormatchapi.config;
+
+import com.rmeunier.colormatchapi.dao.ProductColorNeighbourRepository;
+import com.rmeunier.colormatchapi.dao.ProductRepository;
+import com.rmeunier.colormatchapi.model.ProductColorView;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+
+/**
+ * The ids of the products whose color neighbours a run of the colorNeighboursJob computes, sorted.
+ * A full run covers every product that has a dominant color, an incremental run only the products
+ * whose neighbours may have changed since the last run.
+ * They are computed once per job execution and shared by all partitions, which cover ranges of the list,
+ * and released by the job listener at the end of the execution.
+ */
+public class ColorNeighboursTargets {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ColorNeighboursTargets.class);
+
+    @Autowired
+    private ProductRepository productRepository;
+
+    @Autowired
+    private ProductColorNeighbourRepository neighbourRepository;
+
+    private final int k;
+
+    private final Map<Long, List<String>> idsByExecution = new ConcurrentHashMap<>();
+
+    /**
+     * @param k the number of neighbours per product
+     */
+    public ColorNeighboursTargets(int k) {
+        this.k = k;
+    }
+
+    /**
+     * @param jobExecutionId the id of the job execution
+     * @param since          the time of the last run for an incremental run, null for a full run
+     * @return the sorted ids of the products to compute the neighbours of
+     */
+    public List<String> getIds(long jobExecutionId, Instant since) {
+        return idsByExecution.computeIfAbsent(jobExecutionId, id -> load(since));
+    }
+
+    public void release(long jobExecutionId) {
+        idsByExecution.remove(jobExecutionId);
+    }
+
+    private List<String> load(Instant since) {
+        List<String> ids;
+        if (since == null) {
+            ids = productRepository.findByDominantRgbIsNotNullOrderByIdAsc().stream()
+                    .map(ProductColorView::getId)
+                    .collect(Collectors.toList());
+        } else {
+            ids = neighbourRepository.findIdsToRecompute(
+                    since.minus(ProductColorNeighbourRepository.COMMIT_MARGIN), k).stream()
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+        LOGGER.info("Computing color neighbours for {} products", ids.size());
+        return ids;
+    }
+}
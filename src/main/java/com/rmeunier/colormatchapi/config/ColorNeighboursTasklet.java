@@ -0,0 +1,102 @@
+package com.rmeunier.colormatchapi.config;
+
+import com.rmeunier.colormatchapi.dao.ProductColorNeighbourRepository;
+import com.rmeunier.colormatchapi.dao.ProductRepository;
+import com.rmeunier.colormatchapi.model.Product;
+import com.rmeunier.colormatchapi.model.ProductColorNeighbour;
+import com.rmeunier.colormatchapi.service.ColorIndex;
+import com.rmeunier.colormatchapi.service.ColorMatch;
+import com.rmeunier.colormatchapi.service.ColorProximity;
+import org.springframework.batch.core.StepContribution;
+import org.springframework.batch.core.scope.context.ChunkContext;
+import org.springframework.batch.core.step.tasklet.Tasklet;
+import org.springframework.batch.repeat.RepeatStatus;
+import org.springframework.beans.factory.annotation.Autowired;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Computes the color neighbours of a range of the targets of a colorNeighboursJob run, one block at a time,
+ * each block in its own transaction. The references of a block are ranked together by the color index,
+ * which shares one cache-blocked pass over all colors between them with the BRUTE engine.
+ */
+public class ColorNeighboursTasklet implements Tasklet {
+
+    // references ranked together, and written in one transaction
+    private static final int BLOCK_SIZE = 1024;
+
+    @Autowired
+    private ProductRepository productRepository;
+
+    @Autowired
+    private ProductColorNeighbourRepository neighbourRepository;
+
+    @Autowired
+    private ColorIndex colorIndex;
+
+    @Autowired
+    private ColorProximity colorProximity;
+
+    private final List<String> targetIds;
+
+    private final int to;
+
+    private final int k;
+
+    private int position;
+
+    public ColorNeighboursTasklet(List<String> targetIds, int from, int to, int k) {
+        this.targetIds = targetIds;
+        this.position = from;
+        this.to = to;
+        this.k = k;
+    }
+
+    @Override
+    public RepeatStatus execute(StepContribution contribution, ChunkContext chunkContext) {
+        if (position >= to) {
+            return RepeatStatus.FINISHED;
+        }
+
+        int end = Math.min(position + BLOCK_SIZE, to);
+        List<String> ids = targetIds.subList(position, end);
+
+        // taken before reading, so the rows never claim to reflect a write they have not seen
+        Instant computedAt = Instant.now();
+
+        // products without a dominant color anymore only have their neighbours deleted
+        List<Product> products = new ArrayList<>();
+        for (Product product : productRepository.findAllById(ids)) {
+            if (product.getDominantRgb() != null) {
+                products.add(product);
+            }
+        }
+
+        int[] labs = new int[products.size()];
+        String[] excludedIds = new String[products.size()];
+        for (int i = 0; i < products.size(); i++) {
+            labs[i] = colorProximity.labOf(products.get(i).getDominantRgb());
+            excludedIds[i] = products.get(i).getId();
+        }
+        List<List<ColorMatch>> matches = colorIndex.findClosestToLabs(labs, excludedIds, k);
+
+        List<ProductColorNeighbour> neighbours = new ArrayList<>();
+        for (int i = 0; i < products.size(); i++) {
+            List<ColorMatch> productMatches = matches.get(i);
+            for (int rank = 0; rank < productMatches.size(); rank++) {
+                ColorMatch match = productMatches.get(rank);
+                neighbours.add(new ProductColorNeighbour(excludedIds[i], rank, match.getId(), match.getDistance(),
+                        computedAt));
+            }
+        }
+
+        neighbourRepository.deleteByProductIds(ids);
+        neighbourRepository.saveAll(neighbours);
+        contribution.incrementWriteCount(ids.size());
+
+        position = end;
+        return position >= to ? RepeatStatus.FINISHED : RepeatStatus.CONTINUABLE;
+    }
+}
@@ -91,7 +91,7 @@ public class DomColorJobBatchConfiguration {
 
     /**
      * The ItemProcessor for getting each read record
-     * and retrieving the dominant colors for the not null objects in db.
+     * and filtering out the ones with a dominant color and a palette in db.
      * @return the ProductItemProcessor bean
      */
     @Bean
@@ -99,11 +99,22 @@ public class DomColorJobBatchConfiguration {
         return new DomColorProductItemProcessor();
     }
 
+    /**
+     * The ItemWriter loading the palettes and dominant colors of a chunk's products with batched Vision API calls,
+     * then persisting them to the database.
+     * @param databaseWriter the RepositoryItemWriter bean
+     * @return the DomColorProductItemWriter bean
+     */
+    @Bean
+    public DomColorProductItemWriter domColorWriter(RepositoryItemWriter<Product> databaseWriter) {
+        return new DomColorProductItemWriter(databaseWriter);
+    }
+
     /**
      *
      * Spring Batch Step for reading, processing and writing Product elements.
-     * It reads the Products from the database, then processes them (sets Dominant Colors)
-     * and then persists them to the database.
+     * It reads the Products from the database, then filters out the ones already colored,
+     * and then sets the Dominant Colors of a whole chunk and persists them to the database.
      *
      * @param databaseWriter the RepositoryItemWriter bean
      * @return the Step object
@@ -114,7 +125,7 @@ public class DomColorJobBatchConfiguration {
                 .<Product, Product> chunk(chunkSize)
                 .reader(databaseReader())
                 .processor(processor())
-                .writer(databaseWriter)
+                .writer(domColorWriter(databaseWriter))
                 .listener(itemCountListener())
                 // Multi-threaded execution
                 .taskExecutor(taskExecutor)
@@ -1,42 +1,21 @@
 package com.rmeunier.colormatchapi.config;
 
-import com.rmeunier.colormatchapi.exception.ResourceNotFoundException;
 import com.rmeunier.colormatchapi.model.Product;
-import com.rmeunier.colormatchapi.service.IProductService;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
 import org.springframework.batch.item.ItemProcessor;
-import org.springframework.beans.factory.annotation.Autowired;
 
+/**
+ * Filters out the products that already have a dominant color and a palette.
+ * The colors of the other ones are loaded for the whole chunk by the DomColorProductItemWriter.
+ */
 public class DomColorProductItemProcessor implements ItemProcessor<Product, Product> {
 
-    private static final Logger LOGGER = LoggerFactory.getLogger(DomColorProductItemProcessor.class);
-
-    @Autowired
-    private IProductService productService;
-
     @Override
     public Product process(Product product) {
-        // filtering existing dominant color records to be skipped
-        if (product.getDominantColor() != null) {
-            return null;
-        }
-
-        int[] domColor;
-
-        try {
-            domColor = productService.findDominantColor(product);
-        } catch (ResourceNotFoundException e) {
-            LOGGER.error("Could not get resource! Error: {}", e.getMessage());
+        // filtering records with an existing dominant color and palette to be skipped
+        if (product.getDominantColor() != null && product.getPalette() != null) {
             return null;
         }
 
-        if (domColor == null) {
-            return null;
-        }
-
-        product.setDominantColor(domColor);
-
         return product;
     }
 }
@@ -0,0 +1,58 @@
+package com.rmeunier.colormatchapi.config;
+
+import com.rmeunier.colormatchapi.model.ColorPalette;
+import com.rmeunier.colormatchapi.model.Product;
+import com.rmeunier.colormatchapi.service.IProductService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.batch.item.ItemWriter;
+import org.springframework.beans.factory.annotation.Autowired;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * ItemWriter loading the palettes of a whole chunk of products at once, so the Vision API is called once per
+ * batch of images instead of once per product, then persisting the colored products with the delegate writer.
+ * Products whose image could not be analyzed are left out of the write, and are retried on the next run.
+ */
+public class DomColorProductItemWriter implements ItemWriter<Product> {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(DomColorProductItemWriter.class);
+
+    @Autowired
+    private IProductService productService;
+
+    private final ItemWriter<Product> delegate;
+
+    public DomColorProductItemWriter(ItemWriter<Product> delegate) {
+        this.delegate = delegate;
+    }
+
+    @Override
+    public void write(List<? extends Product> products) throws Exception {
+        List<ColorPalette> palettes = productService.findPalettes(products);
+
+        List<Product> colored = new ArrayList<>(products.size());
+        for (int i = 0; i < products.size(); i++) {
+            Product product = products.get(i);
+            ColorPalette palette = palettes.get(i);
+
+            if (palette == null || palette.size() == 0) {
+                LOGGER.error("Could not get the palette of product: {}", product.getId());
+                continue;
+            }
+
+            // the dominant color is the first color of the palette, an existing one is kept
+            product.setPalette(palette);
+            if (product.getDominantColor() == null) {
+                product.setDominantColor(palette.getDominantColor());
+            }
+            colored.add(product);
+        }
+
+        if (!colored.isEmpty()) {
+            delegate.write(colored);
+        }
+    }
+}
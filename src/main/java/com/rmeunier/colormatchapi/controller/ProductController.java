@@ -1,33 +1,114 @@
 package com.rmeunier.colormatchapi.controller;
 
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
 import com.rmeunier.colormatchapi.exception.ColorMissingException;
+import com.rmeunier.colormatchapi.exception.InvalidColorException;
 import com.rmeunier.colormatchapi.exception.ResourceNotFoundException;
+import com.rmeunier.colormatchapi.model.ColorNeighboursRequest;
+import com.rmeunier.colormatchapi.model.GenderId;
 import com.rmeunier.colormatchapi.model.Product;
+import com.rmeunier.colormatchapi.service.ColorDistance;
+import com.rmeunier.colormatchapi.service.ColorProximity;
+import com.rmeunier.colormatchapi.service.ColorSearchCacheStats;
+import com.rmeunier.colormatchapi.service.ColorSearchOptions;
 import com.rmeunier.colormatchapi.service.IProductService;
+import com.rmeunier.colormatchapi.service.ProductCacheStats;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.server.ResponseStatusException;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.function.ToDoubleFunction;
 
 @RestController
 public class ProductController {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(ProductController.class);
 
+    private static final int MAX_PAGE_LIMIT = 1000;
+
     private IProductService productService;
 
+    private ColorProximity colorProximity;
+
+    private ObjectMapper objectMapper;
+
     @Autowired
-    public ProductController(IProductService productService) {
+    public ProductController(IProductService productService, ColorProximity colorProximity,
+                             ObjectMapper objectMapper) {
         this.productService = productService;
+        this.colorProximity = colorProximity;
+        this.objectMapper = objectMapper;
     }
 
+    /**
+     * Retrieves the products ordered by id, one page at a time (keyset pagination).
+     * The next page is retrieved by passing the id of the last product of the page as after,
+     * until a page has fewer than limit products. Example: /products?after=L1212-00-132&limit=100
+     * @param after the id of the last product of the previous page, omitted for the first page
+     * @param limit the number of products per page, at most 1000
+     * @param fields the fields to return for each product, e.g. id,dominantColor, all of them if omitted
+     * @return the products of the page
+     */
     @GetMapping("/products")
-    public List<Product> getProducts() {
-        return productService.findAll();
+    public List<?> getProducts(@RequestParam(value = "after", required = false) String after,
+                               @RequestParam(value = "limit", defaultValue = "100") int limit,
+                               @RequestParam(value = "fields", required = false) String fields) {
+        ProductFields projection = ProductFields.parse(fields);
+
+        if (limit < 0) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Error: limit must not be negative");
+        }
+        if (limit == 0) {
+            return new ArrayList<>();
+        }
+
+        return toResponse(productService.findPage(after, Math.min(limit, MAX_PAGE_LIMIT)), projection, null);
+    }
+
+    /**
+     * Streams every product ordered by id as newline-delimited JSON, one product per line, e.g. for a catalog export.
+     * The products are read from a database cursor and written as they come, so the export runs in constant memory.
+     * @param fields the fields to return for each product, e.g. id,dominantColor, all of them if omitted
+     * @return the streamed products
+     */
+    @GetMapping(value = "/products/export", produces = MediaType.APPLICATION_NDJSON_VALUE)
+    public ResponseEntity<StreamingResponseBody> exportProducts(@RequestParam(value = "fields", required = false)
+                                                                        String fields) {
+        ProductFields projection = ProductFields.parse(fields);
+        ObjectWriter writer = objectMapper.writer()
+                .without(JsonGenerator.Feature.AUTO_CLOSE_TARGET)
+                .without(SerializationFeature.FLUSH_AFTER_WRITE_VALUE);
+
+        StreamingResponseBody body = out -> productService.forEachProduct(product -> {
+            try {
+                writer.writeValue(out, projection == null ? product : projection.project(product, null));
+                out.write('\n');
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+
+        return ResponseEntity.ok()
+                .contentType(MediaType.APPLICATION_NDJSON)
+                .body(body);
     }
 
     @GetMapping("/products/{id}")
@@ -84,31 +165,346 @@ public class ProductController {
         productService.findDominantColorForAllProducts();
     }
 
+    /**
+     * Computes the closest products of every product into the product_color_neighbours table,
+     * from which /getProductsOfColor is then served. Runs as a Batch Job.
+     * @param incremental only recomputes the products affected by the color changes since the last run
+     */
+    @PostMapping(value = "/computeColorNeighbours")
+    public void computeColorNeighbours(@RequestParam(value = "incremental", defaultValue = "false")
+                                               boolean incremental) {
+        productService.computeColorNeighbours(incremental);
+    }
+
     /**
      * Retrieves an n-element list of products that have the closest color to reference product provided in id.
+     * With mode=approx, a faster approximate search is used, visiting probe rings of grid cells
+     * around the reference color. A bigger probe gives more accurate results.
+     * With metric=cie94 or metric=ciede2000, the results are ranked with that color difference formula.
+     * The genderId, sleeve and composition filters restrict the results to the products with these values,
+     * e.g. ?genderId=MAN&sleeve=Manches courtes.
+     * With fields, e.g. ?fields=id,dominantColor,distance, only these fields of the products are returned.
      * @param id the product ID to reference the color on
      * @param n the number of products to retrieve
+     * @param mode exact (default) or approx
+     * @param probe the number of grid cell rings to visit in approx mode
+     * @param metric cie76 (default), cie94 or ciede2000
+     * @param genderId the gender filter, optional
+     * @param sleeve the sleeve filter, optional
+     * @param composition the composition filter, optional
+     * @param fields the fields to return for each product, all of them if omitted
      * @return a list of filtered list of Products
      */
     @PostMapping("/getProductsOfColor/{id}/{n}")
-    public List<Product> getProductsOfColor(@PathVariable("id") String id, @PathVariable("n") int n) {
+    public List<?> getProductsOfColor(@PathVariable("id") String id, @PathVariable("n") int n,
+                                      @RequestParam(value = "mode", defaultValue = "exact") String mode,
+                                      @RequestParam(value = "probe", defaultValue = "1") int probe,
+                                      @RequestParam(value = "metric", defaultValue = "cie76") String metric,
+                                      @RequestParam(value = "genderId", required = false) String genderId,
+                                      @RequestParam(value = "sleeve", required = false) String sleeve,
+                                      @RequestParam(value = "composition", required = false) String composition,
+                                      @RequestParam(value = "fields", required = false) String fields) {
         LOGGER.info("Getting products that have a color like product: {}", id);
 
+        ProductFields projection = ProductFields.parse(fields);
         Product product = productService.findById(id);
 
         if (product == null || n <= 0) {
             return new ArrayList<>();
         }
 
+        ColorSearchOptions options = searchOptions(mode, probe, metric, genderId, sleeve, composition);
+
         List<Product> products = new ArrayList<>();
 
         try {
-            products = productService.getProductsOfColorLike(product, n);
+            products = productService.getProductsOfColorLike(product, n, options);
         } catch (ColorMissingException e) {
             LOGGER.error("Error during retrieving products of color like product {}", id);
             LOGGER.error("Error message: {}", e.getMessage());
         }
 
-        return products;
+        if (products.isEmpty()) {
+            return products;
+        }
+        return toResponse(products, projection, distanceTo(
+                colorProximity.labOf(product.getDominantRgb()), options));
+    }
+
+    /**
+     * Retrieves an n-element list of products that have the most similar palette to the reference product provided
+     * in id. Palettes hold the main colors of the product images with their weights, so striped and printed
+     * products are matched on all of their colors rather than on the dominant one only.
+     * @param id the product ID to reference the palette on
+     * @param n the number of products to retrieve
+     * @param fields the fields to return for each product, all of them if omitted, without distance
+     * @return a list of Products, most similar palette first
+     */
+    @GetMapping("/getProductsOfPalette/{id}/{n}")
+    public List<?> getProductsOfPalette(@PathVariable("id") String id, @PathVariable("n") int n,
+                                        @RequestParam(value = "fields", required = false) String fields) {
+        LOGGER.info("Getting products that have a palette like product: {}", id);
+
+        ProductFields projection = ProductFields.parse(fields);
+        Product product = productService.findById(id);
+
+        if (product == null || n <= 0) {
+            return new ArrayList<>();
+        }
+
+        List<Product> products = new ArrayList<>();
+
+        try {
+            products = productService.getProductsOfPaletteLike(product, n);
+        } catch (ColorMissingException e) {
+            LOGGER.error("Error during retrieving products of palette like product {}", id);
+            LOGGER.error("Error message: {}", e.getMessage());
+        }
+
+        return toResponse(products, projection, null);
+    }
+
+    /**
+     * Measures the recall of the approximate color search for a reference product:
+     * the share of the exact n closest products that the approximate search with the given probe also finds.
+     * @param id the product ID to reference the color on
+     * @param n the number of products to compare
+     * @param probe the number of grid cell rings to visit in the approximate search
+     * @return the recall, between 0 and 1
+     */
+    @GetMapping("/getColorSearchRecall/{id}/{n}")
+    public double getColorSearchRecall(@PathVariable("id") String id, @PathVariable("n") int n,
+                                       @RequestParam(value = "probe", defaultValue = "1") int probe) {
+        checkProbe(probe);
+        Product product = productService.findById(id);
+        return productService.getColorSearchRecall(product, n, probe);
+    }
+
+    /**
+     * Retrieves the counters of the color search result cache: entries, estimated bytes, hits, misses,
+     * hit ratio, evictions and invalidations. Useful for sizing the cache.
+     * @return the cache counters
+     */
+    @GetMapping("/getColorSearchCacheStats")
+    public ColorSearchCacheStats getColorSearchCacheStats() {
+        return productService.getColorSearchCacheStats();
+    }
+
+    /**
+     * Retrieves the counters of the product cache: entries, hits, misses, hit ratio, evictions and expirations.
+     * Useful for sizing the cache.
+     * @return the cache counters
+     */
+    @GetMapping("/getProductCacheStats")
+    public ProductCacheStats getProductCacheStats() {
+        return productService.getProductCacheStats();
+    }
+
+    /**
+     * Retrieves an n-element list of products that have the closest color to an arbitrary color,
+     * given either as a hexadecimal RGB value or as an L*a*b triple (L in 0..100).
+     * No reference product is looked up. Example: /products/nearColor?rgb=ff8800&n=10
+     * @param rgb the hexadecimal RGB color, e.g. ff8800
+     * @param lab the L*a*b color as comma-separated values, e.g. 62.5,31,70, used if rgb is not given
+     * @param n the number of products to retrieve
+     * @param mode exact (default) or approx
+     * @param probe the number of grid cell rings to visit in approx mode
+     * @param metric cie76 (default), cie94 or ciede2000
+     * @param genderId the gender filter, optional
+     * @param sleeve the sleeve filter, optional
+     * @param composition the composition filter, optional
+     * @param fields the fields to return for each product, e.g. id,dominantColor,distance, all of them if omitted
+     * @return the list of closest Products
+     */
+    @GetMapping("/products/nearColor")
+    public List<?> getProductsNearColor(@RequestParam(value = "rgb", required = false) String rgb,
+                                        @RequestParam(value = "lab", required = false) String lab,
+                                        @RequestParam(value = "n", defaultValue = "10") int n,
+                                        @RequestParam(value = "mode", defaultValue = "exact") String mode,
+                                        @RequestParam(value = "probe", defaultValue = "1") int probe,
+                                        @RequestParam(value = "metric", defaultValue = "cie76") String metric,
+                                        @RequestParam(value = "genderId", required = false) String genderId,
+                                        @RequestParam(value = "sleeve", required = false) String sleeve,
+                                        @RequestParam(value = "composition", required = false) String composition,
+                                        @RequestParam(value = "fields", required = false) String fields) {
+        ProductFields projection = ProductFields.parse(fields);
+
+        if (n <= 0) {
+            return new ArrayList<>();
+        }
+
+        ColorSearchOptions options = searchOptions(mode, probe, metric, genderId, sleeve, composition);
+
+        try {
+            if (rgb != null) {
+                int packedRgb = ColorProximity.parseRgb(rgb);
+                return toResponse(productService.getProductsNearColor(packedRgb, n, options), projection,
+                        distanceTo(colorProximity.labOf(packedRgb), options));
+            }
+            if (lab != null) {
+                int packedLab = parseLab(lab);
+                return toResponse(productService.getProductsNearLab(packedLab, n, options), projection,
+                        distanceTo(packedLab, options));
+            }
+        } catch (IllegalArgumentException e) {
+            throw new InvalidColorException(e.getMessage());
+        }
+
+        throw new InvalidColorException("Either an rgb or a lab color has to be provided!");
+    }
+
+    /**
+     * Retrieves the n closest products for many references in one call, sharing a single pass over the catalog.
+     * The body lists reference product ids and/or hexadecimal RGB colors, e.g.
+     * {"ids": ["L1212-00-132"], "colors": ["ff8800"], "n": 10}
+     * Either list can be left out, but null elements are rejected with a 400 status.
+     * @param request the references and the number of products to retrieve for each
+     * @return the lists of closest Products, keyed by reference product id or color
+     */
+    @PostMapping(value = "/products/colorNeighbours", consumes = MediaType.APPLICATION_JSON_VALUE)
+    public Map<String, List<Product>> getColorNeighbours(@RequestBody ColorNeighboursRequest request) {
+        checkNoNulls("ids", request.getIds());
+        checkNoNulls("colors", request.getColors());
+        if (request.getN() <= 0) {
+            return new LinkedHashMap<>();
+        }
+
+        Map<String, Integer> colors = new LinkedHashMap<>();
+        try {
+            for (String color : request.getColors()) {
+                colors.put(color, ColorProximity.parseRgb(color));
+            }
+        } catch (IllegalArgumentException e) {
+            throw new InvalidColorException(e.getMessage());
+        }
+
+        return productService.getColorNeighbours(request.getIds(), colors, request.getN());
+    }
+
+    /**
+     * Retrieves a page of all products within a color distance (CIE76 delta E) of a reference, closest first.
+     * The reference is a product id, a hexadecimal RGB color or an L*a*b triple (L in 0..100).
+     * Example: /products/colorRange?rgb=ff8800&deltaE=5&page=0&size=50
+     * @param id the reference product ID, left out of the results
+     * @param rgb the hexadecimal RGB reference color, used if no id is given
+     * @param lab the L*a*b reference color as comma-separated values, used if no id or rgb is given
+     * @param deltaE the maximum color distance, not negative
+     * @param page the page number, starting from 0
+     * @param size the page size, between 1 and 1000
+     * @param fields the fields to return for each product, e.g. id,dominantColor,distance, all of them if omitted
+     * @return the page of Products within the distance
+     */
+    @GetMapping("/products/colorRange")
+    public Page<?> getProductsInColorRange(@RequestParam(value = "id", required = false) String id,
+                                           @RequestParam(value = "rgb", required = false) String rgb,
+                                           @RequestParam(value = "lab", required = false) String lab,
+                                           @RequestParam(value = "deltaE") double deltaE,
+                                           @RequestParam(value = "page", defaultValue = "0") int page,
+                                           @RequestParam(value = "size", defaultValue = "50") int size,
+                                           @RequestParam(value = "fields", required = false) String fields) {
+        ProductFields projection = ProductFields.parse(fields);
+        if (Double.isNaN(deltaE) || deltaE < 0) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Error: deltaE must not be negative");
+        }
+        if (page < 0) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Error: page must not be negative");
+        }
+        if (size < 1 || size > MAX_PAGE_LIMIT) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST,
+                    "Error: size must be between 1 and " + MAX_PAGE_LIMIT);
+        }
+        int packedLab;
+
+        try {
+            if (id != null) {
+                Product product = productService.findById(id);
+                if (product.getDominantColor() == null) {
+                    throw new ColorMissingException("No dominant color exists for product: " + id);
+                }
+                packedLab = colorProximity.labOf(product.getDominantRgb());
+            } else if (rgb != null) {
+                packedLab = colorProximity.labOf(ColorProximity.parseRgb(rgb));
+            } else if (lab != null) {
+                packedLab = parseLab(lab);
+            } else {
+                throw new InvalidColorException("Either an id, an rgb or a lab color has to be provided!");
+            }
+        } catch (IllegalArgumentException e) {
+            throw new InvalidColorException(e.getMessage());
+        }
+
+        Page<Product> products = productService.getProductsWithinColorDistance(packedLab, deltaE, id,
+                PageRequest.of(page, size));
+
+        if (projection == null) {
+            return products;
+        }
+        ToDoubleFunction<Product> distance = distanceTo(packedLab, new ColorSearchOptions());
+        return products.map(product -> projection.project(product, distance));
+    }
+
+    private ColorSearchOptions searchOptions(String mode, int probe, String metric,
+                                             String genderId, String sleeve, String composition) {
+        checkProbe(probe);
+        ColorSearchOptions options = new ColorSearchOptions();
+        options.setMode(parseEnum(ColorSearchOptions.Mode.class, "mode", mode));
+        options.setProbe(probe);
+        options.setMetric(parseEnum(ColorSearchOptions.Metric.class, "metric", metric));
+        options.setGenderId(genderId == null ? null : parseEnum(GenderId.class, "genderId", genderId));
+        options.setSleeve(sleeve);
+        options.setComposition(composition);
+        return options;
+    }
+
+    private static void checkProbe(int probe) {
+        if (probe < 0) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Error: probe must not be negative");
+        }
+    }
+
+    private static void checkNoNulls(String name, List<String> values) {
+        if (values.contains(null)) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Error: " + name + " must not contain null");
+        }
+    }
+
+    /**
+     * Parses a request parameter into a constant of an enum, ignoring case.
+     *
+     * @throws ResponseStatusException with a 400 status naming the allowed values if there is no such constant
+     */
+    private static <E extends Enum<E>> E parseEnum(Class<E> type, String name, String value) {
+        try {
+            return Enum.valueOf(type, value.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Error: unknown " + name + " " + value
+                    + ", allowed values are " + Arrays.toString(type.getEnumConstants()));
+        }
+    }
+
+    /**
+     * @return the full products, or their projection on the requested fields
+     */
+    private static List<?> toResponse(List<Product> products, ProductFields projection,
+                                      ToDoubleFunction<Product> distance) {
+        return projection == null ? products : projection.project(products, distance);
+    }
+
+    /**
+     * @return the distance of a product's dominant color to the reference color, by the metric of the search
+     */
+    private ToDoubleFunction<Product> distanceTo(int referenceLab, ColorSearchOptions options) {
+        ColorDistance colorDistance = options.getMetric().getDistance();
+        return product -> colorDistance.distance(referenceLab,
+                colorProximity.labOf(product.getDominantRgb()));
+    }
+
+    private int parseLab(String lab) {
+        String[] values = lab.split(",");
+        if (values.length != 3) {
+            throw new IllegalArgumentException("Error: wrong L*a*b color provided: " + lab);
+        }
+        return ColorProximity.packCieLab(Float.parseFloat(values[0].trim()),
+                Float.parseFloat(values[1].trim()), Float.parseFloat(values[2].trim()));
     }
 }
@@ -0,0 +1,108 @@
+package com.rmeunier.colormatchapi.controller;
+
+import com.rmeunier.colormatchapi.exception.InvalidFieldsException;
+import com.rmeunier.colormatchapi.model.Product;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.ToDoubleFunction;
+import java.util.stream.Collectors;
+
+/**
+ * Slim projection of the products returned by the catalog and similarity endpoints, keeping only the fields listed
+ * in their fields parameter, in that order, e.g. ?fields=id,dominantColor,distance.
+ * The distance field is the color distance of the product to the reference of the search, by the metric of the
+ * search, and is left out on the endpoints that have no reference color.
+ */
+class ProductFields {
+
+    private static final List<String> AVAILABLE_FIELDS = Arrays.asList("id", "title", "genderId", "composition",
+            "sleeve", "photo", "url", "dominantColor", "distance");
+
+    private final List<String> fields;
+
+    private ProductFields(List<String> fields) {
+        this.fields = fields;
+    }
+
+    /**
+     * @param fields the comma-separated field names, can be null
+     * @return the projection, or null if no fields are given, in which case the full products are returned
+     * @throws InvalidFieldsException if a field does not exist
+     */
+    static ProductFields parse(String fields) {
+        if (fields == null || fields.trim().isEmpty()) {
+            return null;
+        }
+
+        List<String> names = Arrays.stream(fields.split(","))
+                .map(String::trim)
+                .filter(name -> !name.isEmpty())
+                .distinct()
+                .collect(Collectors.toList());
+
+        for (String name : names) {
+            if (!AVAILABLE_FIELDS.contains(name)) {
+                throw new InvalidFieldsException("Error: unknown field " + name + ", available fields are "
+                        + AVAILABLE_FIELDS);
+            }
+        }
+        return new ProductFields(names);
+    }
+
+    /**
+     * @param products the products to project
+     * @param distance the distance of a product to the reference of the search, null if there is none
+     * @return the projected products, in the same order
+     */
+    List<Map<String, Object>> project(List<Product> products, ToDoubleFunction<Product> distance) {
+        List<Map<String, Object>> projected = new ArrayList<>(products.size());
+        for (Product product : products) {
+            projected.add(project(product, distance));
+        }
+        return projected;
+    }
+
+    Map<String, Object> project(Product product, ToDoubleFunction<Product> distance) {
+        Map<String, Object> values = new LinkedHashMap<>();
+        for (String field : fields) {
+            switch (field) {
+                case "id":
+                    values.put(field, product.getId());
+                    break;
+                case "title":
+                    values.put(field, product.getTitle());
+                    break;
+                case "genderId":
+                    values.put(field, product.getGenderId());
+                    break;
+                case "composition":
+                    values.put(field, product.getComposition());
+                    break;
+                case "sleeve":
+                    values.put(field, product.getSleeve());
+                    break;
+                case "photo":
+                    values.put(field, product.getPhoto());
+                    break;
+                case "url":
+                    values.put(field, product.getUrl());
+                    break;
+                case "dominantColor":
+                    values.put(field, product.getDominantColor());
+                    break;
+                case "distance":
+                    if (distance != null && product.getDominantColor() != null) {
+                        values.put(field, distance.applyAsDouble(product));
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+        return values;
+    }
+}
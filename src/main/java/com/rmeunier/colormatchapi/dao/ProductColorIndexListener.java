@@ -0,0 +1,94 @@
+package com.rmeunier.colormatchapi.dao;
+
+import com.rmeunier.colormatchapi.model.GenderId;
+import com.rmeunier.colormatchapi.model.Product;
+import com.rmeunier.colormatchapi.service.ColorIndex;
+import com.rmeunier.colormatchapi.service.ColorSearchCache;
+import com.rmeunier.colormatchapi.service.PaletteIndex;
+import com.rmeunier.colormatchapi.service.ProductCache;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import javax.persistence.PostPersist;
+import javax.persistence.PostRemove;
+import javax.persistence.PostUpdate;
+
+/**
+ * JPA entity listener applying every written or deleted Product to the live ColorIndex and PaletteIndex,
+ * invalidating the ColorSearchCache and evicting the product from the ProductCache, whichever way the product is
+ * written (services, batch writers). Changes are applied after the transaction commits, so a rolled back write
+ * never reaches the indexes.
+ */
+public class ProductColorIndexListener {
+
+    private final ColorIndex colorIndex;
+
+    private final PaletteIndex paletteIndex;
+
+    private final ColorSearchCache colorSearchCache;
+
+    private final ProductCache productCache;
+
+    // lazy, as the indexes depend on the repositories that this listener is created for
+    @Autowired
+    public ProductColorIndexListener(@Lazy ColorIndex colorIndex, @Lazy PaletteIndex paletteIndex,
+                                     ColorSearchCache colorSearchCache, ProductCache productCache) {
+        this.colorIndex = colorIndex;
+        this.paletteIndex = paletteIndex;
+        this.colorSearchCache = colorSearchCache;
+        this.productCache = productCache;
+    }
+
+    /**
+     * @param product the product that has been inserted or updated
+     */
+    @PostPersist
+    @PostUpdate
+    public void productWritten(Product product) {
+        String id = product.getId();
+        Integer dominantRgb = product.getDominantRgb();
+        GenderId genderId = product.getGenderId();
+        String sleeve = product.getSleeve();
+        String composition = product.getComposition();
+        int[] paletteColors = product.getPaletteColors();
+        int[] paletteWeights = product.getPaletteWeights();
+
+        afterCommit(() -> {
+            colorIndex.update(id, dominantRgb, genderId, sleeve, composition);
+            paletteIndex.update(id, paletteColors, paletteWeights);
+            // after the index, so that a search started before the update cannot cache its result
+            colorSearchCache.invalidate();
+            productCache.evict(id);
+        });
+    }
+
+    /**
+     * @param product the product that has been deleted
+     */
+    @PostRemove
+    public void productRemoved(Product product) {
+        String id = product.getId();
+        afterCommit(() -> {
+            colorIndex.remove(id);
+            paletteIndex.remove(id);
+            colorSearchCache.invalidate();
+            productCache.evict(id);
+        });
+    }
+
+    private static void afterCommit(Runnable action) {
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            action.run();
+            return;
+        }
+
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                action.run();
+            }
+        });
+    }
+}
@@ -0,0 +1,65 @@
+package com.rmeunier.colormatchapi.dao;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.core.Ordered;
+import org.springframework.core.annotation.Order;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+
+/**
+ * Moves the dominant colors stored in the former integer[] column of the product table to the packed
+ * dominant_rgb column. Hibernate only adds the new column, so the rows colored before it existed are copied
+ * on start-up, before the color indexes are loaded. Products colored since then keep their packed color.
+ * The former color of every row is cleared in the same update, so each row is migrated once: a color removed
+ * later on by setting dominant_rgb back to null is not restored at the next start-up.
+ *
+ * The emptied former column is dropped once color-storage.drop-legacy-column is set.
+ */
+@Component
+public class ProductColorMigration {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ProductColorMigration.class);
+
+    private final JdbcTemplate jdbcTemplate;
+
+    @Value("${color-storage.drop-legacy-column:false}")
+    private boolean dropLegacyColumn;
+
+    @Autowired
+    public ProductColorMigration(JdbcTemplate jdbcTemplate) {
+        this.jdbcTemplate = jdbcTemplate;
+    }
+
+    /**
+     * Copies the colors of the former column, if it still exists, and drops it if configured to.
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    @Order(Ordered.HIGHEST_PRECEDENCE)
+    public void migrateDominantColors() {
+        Integer columns = jdbcTemplate.queryForObject("SELECT count(*) FROM information_schema.columns " +
+                "WHERE table_schema = current_schema() AND table_name = 'product' " +
+                "AND column_name = 'dominant_color'", Integer.class);
+        if (columns == null || columns == 0) {
+            return;
+        }
+
+        int migrated = jdbcTemplate.update("UPDATE product " +
+                "SET dominant_rgb = coalesce(dominant_rgb, CASE WHEN array_length(dominant_color, 1) >= 3 " +
+                "THEN (dominant_color[1] & 255) * 65536 + (dominant_color[2] & 255) * 256 " +
+                "+ (dominant_color[3] & 255) END), dominant_color = NULL " +
+                "WHERE dominant_color IS NOT NULL");
+        if (migrated > 0) {
+            LOGGER.info("Migrated the legacy dominant colors of {} products to the dominant_rgb column", migrated);
+        }
+
+        if (dropLegacyColumn) {
+            jdbcTemplate.execute("ALTER TABLE product DROP COLUMN dominant_color");
+            LOGGER.info("Dropped the legacy dominant_color column");
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package com.rmeunier.colormatchapi.dao;
+
+import com.rmeunier.colormatchapi.model.ProductColorNeighbour;
+import com.rmeunier.colormatchapi.model.ProductColorNeighbourId;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Collection;
+import java.util.List;
+
+@Repository
+public interface ProductColorNeighbourRepository extends JpaRepository<ProductColorNeighbour, ProductColorNeighbourId> {
+
+    // color_updated_at is set when the color is changed, not when the write commits: a write committed up to this
+    // long after its color_updated_at is still considered as possibly unseen by a computation
+    Duration COMMIT_MARGIN = Duration.ofMinutes(5);
+
+    /**
+     * Retrieves the first precomputed color neighbours of a product.
+     * @param productId the id of the product
+     * @param n the number of neighbours to retrieve
+     * @return the neighbours, closest first
+     */
+    @Query("SELECT n FROM ProductColorNeighbour n WHERE n.productId = :productId AND n.neighbourRank < :n " +
+            "ORDER BY n.neighbourRank")
+    List<ProductColorNeighbour> findFirstNeighbours(@Param("productId") String productId, @Param("n") int n);
+
+    /**
+     * Deletes the precomputed color neighbours of the given products.
+     * @param productIds the ids of the products
+     */
+    @Modifying
+    @Query("DELETE FROM ProductColorNeighbour n WHERE n.productId IN :productIds")
+    void deleteByProductIds(@Param("productIds") Collection<String> productIds);
+
+    /**
+     * Retrieves the ids of the products whose color neighbours may have changed since a point in time:
+     * the products whose color changed, the products that have one of them or a deleted or uncolored product
+     * among their neighbours, and the products that a changed color is now at least as close to as their
+     * k-th neighbour (or that have less than k neighbours).
+     * The last case is driven by the changed products: only the products inside a box around each of them,
+     * as large as the largest k-th neighbour distance, are checked, through the index on the L*a*b columns.
+     * @param since the time of the last computation, minus COMMIT_MARGIN
+     * @param k the number of neighbours stored per product
+     * @return the ids of the products to recompute
+     */
+    @Query(value = "WITH r AS (SELECT coalesce(max(distance), 0) + 0.001 AS radius " +
+            "FROM product_color_neighbours WHERE neighbour_rank = :k - 1) " +
+            "SELECT p.id FROM product p " +
+            "WHERE p.color_updated_at > :since " +
+            "UNION " +
+            "SELECT n.product_id FROM product_color_neighbours n " +
+            "JOIN product c ON c.id = n.neighbour_id " +
+            "WHERE c.color_updated_at > :since " +
+            "UNION " +
+            "SELECT n.product_id FROM product_color_neighbours n " +
+            "LEFT JOIN product c ON c.id = n.neighbour_id " +
+            "WHERE c.id IS NULL OR c.dominant_rgb IS NULL " +
+            "UNION " +
+            "SELECT n.product_id FROM product_color_neighbours n " +
+            "GROUP BY n.product_id HAVING count(*) < :k " +
+            "UNION " +
+            "SELECT n.product_id FROM r CROSS JOIN product c " +
+            "JOIN product p ON p.lab_l BETWEEN c.lab_l - r.radius AND c.lab_l + r.radius " +
+            "AND p.lab_a BETWEEN c.lab_a - r.radius AND c.lab_a + r.radius " +
+            "AND p.lab_b BETWEEN c.lab_b - r.radius AND c.lab_b + r.radius " +
+            "AND p.id <> c.id " +
+            "JOIN product_color_neighbours n ON n.product_id = p.id AND n.neighbour_rank = :k - 1 " +
+            "WHERE c.color_updated_at > :since AND c.lab_l IS NOT NULL " +
+            "AND (p.lab_l - c.lab_l) * (p.lab_l - c.lab_l) + (p.lab_a - c.lab_a) * (p.lab_a - c.lab_a) " +
+            "+ (p.lab_b - c.lab_b) * (p.lab_b - c.lab_b) <= n.distance * n.distance + 0.001",
+            nativeQuery = true)
+    List<String> findIdsToRecompute(@Param("since") Instant since, @Param("k") int k);
+}
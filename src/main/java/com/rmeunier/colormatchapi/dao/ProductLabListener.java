@@ -0,0 +1,43 @@
+package com.rmeunier.colormatchapi.dao;
+
+import com.rmeunier.colormatchapi.model.Product;
+import com.rmeunier.colormatchapi.service.ColorProximity;
+import org.springframework.beans.factory.annotation.Autowired;
+
+import javax.persistence.PrePersist;
+import javax.persistence.PreUpdate;
+
+/**
+ * JPA entity listener keeping the L*a*b columns of a Product in sync with its dominant color,
+ * whichever way the product is written (services, batch writers).
+ */
+public class ProductLabListener {
+
+    private final ColorProximity colorProximity;
+
+    @Autowired
+    public ProductLabListener(ColorProximity colorProximity) {
+        this.colorProximity = colorProximity;
+    }
+
+    /**
+     * Computes the L*a*b values of the product's dominant color, or clears them if it has none.
+     *
+     * @param product the product about to be written
+     */
+    @PrePersist
+    @PreUpdate
+    public void updateLab(Product product) {
+        Integer color = product.getDominantRgb();
+
+        if (color == null) {
+            product.setLab(null, null, null);
+            return;
+        }
+
+        int lab = colorProximity.labOf(color);
+        product.setLab((float) ColorProximity.lightness(lab),
+                (float) ColorProximity.greenRed(lab),
+                (float) ColorProximity.blueYellow(lab));
+    }
+}
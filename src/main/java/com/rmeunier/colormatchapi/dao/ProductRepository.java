@@ -1,10 +1,165 @@
 package com.rmeunier.colormatchapi.dao;
 
 import com.rmeunier.colormatchapi.model.Product;
+import com.rmeunier.colormatchapi.model.ProductColorView;
+import com.rmeunier.colormatchapi.model.ProductPaletteView;
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.jpa.repository.QueryHints;
+import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
 
+import javax.persistence.QueryHint;
+import java.time.Instant;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.hibernate.jpa.QueryHints.HINT_FETCH_SIZE;
+import static org.hibernate.jpa.QueryHints.HINT_READONLY;
+
 @Repository
 public interface ProductRepository extends JpaRepository<Product, String> {
 
+    String WITHIN_LAB_CONDITION = "WHERE p.lab_l BETWEEN :l - :radius AND :l + :radius " +
+            "AND p.lab_a BETWEEN :a - :radius AND :a + :radius " +
+            "AND p.lab_b BETWEEN :b - :radius AND :b + :radius " +
+            "AND (p.lab_l - :l) * (p.lab_l - :l) + (p.lab_a - :a) * (p.lab_a - :a) " +
+            "+ (p.lab_b - :b) * (p.lab_b - :b) <= :radius * :radius " +
+            "AND p.id <> :excludedId ";
+
+    // rows fetched per round trip by the streaming queries, which run on a PostgreSQL cursor
+    String STREAM_FETCH_SIZE = "500";
+
+    /**
+     * Retrieves the first products ordered by id, for the first page of a keyset pagination.
+     * @param pageable the number of products to retrieve, the page number is ignored
+     * @return the list of products
+     */
+    List<Product> findAllByOrderByIdAsc(Pageable pageable);
+
+    /**
+     * Retrieves the products following the given id, ordered by id, for the next page of a keyset pagination.
+     * Unlike an offset, the primary key index goes straight to the first product of the page.
+     * @param after the id of the last product of the previous page
+     * @param pageable the number of products to retrieve, the page number is ignored
+     * @return the list of products
+     */
+    List<Product> findByIdGreaterThanOrderByIdAsc(String after, Pageable pageable);
+
+    /**
+     * Streams every product ordered by id, fetching STREAM_FETCH_SIZE rows at a time from a cursor,
+     * as read-only entities. Has to be called inside a transaction, and the stream has to be closed.
+     * @return the stream of products
+     */
+    @QueryHints({
+            @QueryHint(name = HINT_FETCH_SIZE, value = STREAM_FETCH_SIZE),
+            @QueryHint(name = HINT_READONLY, value = "true")
+    })
+    @Query("SELECT p FROM Product p ORDER BY p.id")
+    Stream<Product> streamAllByOrderByIdAsc();
+
+    /**
+     * Retrieves the id and dominant color of every product that has a dominant color, ordered by id.
+     * @return the list of color projections
+     */
+    List<ProductColorView> findByDominantRgbIsNotNullOrderByIdAsc();
+
+    /**
+     * Retrieves the id and dominant color of every product written after the given time, including the ones
+     * without a dominant color, ordered by id.
+     * @param since the time after which the products were written
+     * @return the list of color projections
+     */
+    List<ProductColorView> findByUpdatedAtAfterOrderByIdAsc(Instant since);
+
+    /**
+     * Retrieves the id and palette of every product that has a palette, ordered by id.
+     * @return the list of palette projections
+     */
+    List<ProductPaletteView> findByPaletteColorsIsNotNullOrderByIdAsc();
+
+    /**
+     * Counts the products that have a dominant color.
+     * @return the number of products with a dominant color
+     */
+    long countByDominantRgbIsNotNull();
+
+    /**
+     * Retrieves products that have a dominant color but no L*a*b values yet, e.g. rows written before
+     * the L*a*b columns existed.
+     * @param pageable the page to retrieve
+     * @return the list of products to fill the L*a*b values of
+     */
+    List<Product> findByDominantRgbIsNotNullAndLabLIsNull(Pageable pageable);
+
+    /**
+     * Retrieves the n products closest to an L*a*b point among the ones inside a box around it,
+     * ranked inside the database. The box lets PostgreSQL use the index on the L*a*b columns.
+     * @param l the reference L value
+     * @param a the reference a value
+     * @param b the reference b value
+     * @param radius the half edge length of the box
+     * @param excludedId the id of a product to leave out
+     * @param genderId the gender of the products to retrieve, empty for any
+     * @param sleeve the sleeve of the products to retrieve, empty for any
+     * @param composition the composition of the products to retrieve, empty for any
+     * @param n the number of products to retrieve
+     * @return the closest products inside the box, closest first
+     */
+    @Query(value = "SELECT * FROM product p " +
+            "WHERE p.lab_l BETWEEN :l - :radius AND :l + :radius " +
+            "AND p.lab_a BETWEEN :a - :radius AND :a + :radius " +
+            "AND p.lab_b BETWEEN :b - :radius AND :b + :radius " +
+            "AND p.id <> :excludedId " +
+            "AND (:genderId = '' OR p.gender_id = :genderId) " +
+            "AND (:sleeve = '' OR p.sleeve = :sleeve) " +
+            "AND (:composition = '' OR p.composition = :composition) " +
+            "ORDER BY (p.lab_l - :l) * (p.lab_l - :l) + (p.lab_a - :a) * (p.lab_a - :a) " +
+            "+ (p.lab_b - :b) * (p.lab_b - :b), p.id " +
+            "LIMIT :n",
+            nativeQuery = true)
+    List<Product> findClosestByLab(@Param("l") float l, @Param("a") float a, @Param("b") float b,
+                                   @Param("radius") float radius, @Param("excludedId") String excludedId,
+                                   @Param("genderId") String genderId, @Param("sleeve") String sleeve,
+                                   @Param("composition") String composition, @Param("n") int n);
+
+    /**
+     * Checks whether a product other than the excluded one, whose color changed after a point in time,
+     * is within a distance of an L*a*b point.
+     * @param l the reference L value
+     * @param a the reference a value
+     * @param b the reference b value
+     * @param radius the maximum distance
+     * @param excludedId the id of the product to leave out
+     * @param since the point in time
+     * @return true if there is such a product
+     */
+    @Query(value = "SELECT EXISTS (SELECT 1 FROM product p " + WITHIN_LAB_CONDITION +
+            "AND p.color_updated_at > :since)",
+            nativeQuery = true)
+    boolean existsChangedWithinLab(@Param("l") float l, @Param("a") float a, @Param("b") float b,
+                                   @Param("radius") float radius, @Param("excludedId") String excludedId,
+                                   @Param("since") Instant since);
+
+    /**
+     * Retrieves a page of the products whose L*a*b values are within a distance of an L*a*b point,
+     * closest first. The bounding box of the sphere lets PostgreSQL use the index on the L*a*b columns.
+     * @param l the reference L value
+     * @param a the reference a value
+     * @param b the reference b value
+     * @param radius the maximum distance
+     * @param excludedId the id of a product to leave out
+     * @param pageable the page to retrieve
+     * @return the page of products within the distance
+     */
+    @Query(value = "SELECT * FROM product p " + WITHIN_LAB_CONDITION +
+            "ORDER BY (p.lab_l - :l) * (p.lab_l - :l) + (p.lab_a - :a) * (p.lab_a - :a) " +
+            "+ (p.lab_b - :b) * (p.lab_b - :b), p.id",
+            countQuery = "SELECT count(*) FROM product p " + WITHIN_LAB_CONDITION,
+            nativeQuery = true)
+    Page<Product> findWithinLab(@Param("l") float l, @Param("a") float a, @Param("b") float b,
+                                @Param("radius") float radius, @Param("excludedId") String excludedId,
+                                Pageable pageable);
 }
@@ -0,0 +1,41 @@
+package com.rmeunier.colormatchapi.model;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Request body of the batch color neighbours endpoint: reference product ids and/or hexadecimal RGB colors,
+ * and the number of neighbours to find for each. Missing or null lists are empty.
+ */
+public class ColorNeighboursRequest {
+
+    private List<String> ids = new ArrayList<>();
+
+    private List<String> colors = new ArrayList<>();
+
+    private int n;
+
+    public List<String> getIds() {
+        return ids;
+    }
+
+    public void setIds(List<String> ids) {
+        this.ids = ids == null ? new ArrayList<>() : ids;
+    }
+
+    public List<String> getColors() {
+        return colors;
+    }
+
+    public void setColors(List<String> colors) {
+        this.colors = colors == null ? new ArrayList<>() : colors;
+    }
+
+    public int getN() {
+        return n;
+    }
+
+    public void setN(int n) {
+        this.n = n;
+    }
+}
@@ -0,0 +1,54 @@
+package com.rmeunier.colormatchapi.model;
+
+import java.util.Arrays;
+
+/**
+ * The main colors of a product image with their weights, the most dominant color first.
+ * The weights are the share of the image covered by each color, normalized to sum up to 1.
+ */
+public class ColorPalette {
+
+    private final int[] colors;
+
+    private final float[] weights;
+
+    /**
+     * @param colors  the colors as 0xRRGGBB, most dominant first
+     * @param weights the weights of the colors, normalized to sum up to 1
+     */
+    public ColorPalette(int[] colors, float[] weights) {
+        if (colors.length != weights.length) {
+            throw new IllegalArgumentException("Error: a palette needs as many weights as colors!");
+        }
+        this.colors = colors;
+        this.weights = weights;
+    }
+
+    public int size() {
+        return colors.length;
+    }
+
+    public int[] getColors() {
+        return colors;
+    }
+
+    public float[] getWeights() {
+        return weights;
+    }
+
+    /**
+     * @return the RGB vector of the most dominant color of the palette
+     */
+    public int[] getDominantColor() {
+        int color = colors[0];
+        return new int[] {color >> 16 & 0xFF, color >> 8 & 0xFF, color & 0xFF};
+    }
+
+    @Override
+    public String toString() {
+        return "ColorPalette{" +
+                "colors=" + Arrays.toString(colors) +
+                ", weights=" + Arrays.toString(weights) +
+                '}';
+    }
+}
@@ -1,18 +1,31 @@
 package com.rmeunier.colormatchapi.model;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.rmeunier.colormatchapi.dao.ProductColorIndexListener;
+import com.rmeunier.colormatchapi.dao.ProductLabListener;
+import com.rmeunier.colormatchapi.service.ColorProximity;
 import com.sun.istack.NotNull;
 import com.vladmihalcea.hibernate.type.array.IntArrayType;
 import org.hibernate.annotations.Type;
 import org.hibernate.annotations.TypeDef;
 import org.hibernate.annotations.TypeDefs;
+import org.hibernate.annotations.UpdateTimestamp;
 
 import javax.persistence.*;
+import java.time.Instant;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Objects;
 
 @Entity
 @Table(name = "product",
-        indexes = @Index(columnList = "id"))
+        indexes = {
+                @Index(columnList = "id"),
+                @Index(name = "product_lab_idx", columnList = "lab_l, lab_a, lab_b"),
+                @Index(name = "product_updated_at_idx", columnList = "updated_at"),
+                @Index(name = "product_color_updated_at_idx", columnList = "color_updated_at")
+        })
+@EntityListeners({ProductLabListener.class, ProductColorIndexListener.class})
 @TypeDefs({
         @TypeDef(
                 name = "int-array",
@@ -46,10 +59,45 @@ public class Product {
     @Column(length = 200)
     private String url;
 
+    // dominant color packed as 0xRRGGBB, exposed as an RGB vector by getDominantColor
+    @JsonIgnore
+    @Column(name = "dominant_rgb")
+    private Integer dominantRgb;
+
+    // main colors of the image as 0xRRGGBB, most dominant first, and their weights in ten-thousandths
+    @JsonIgnore
+    @Type(type = "int-array")
+    @Column(name = "palette_colors", columnDefinition = "integer[]")
+    private int[] paletteColors;
+
+    @JsonIgnore
     @Type(type = "int-array")
-    @Column(name = "dominant_color",
-            columnDefinition = "integer[]")
-    private int[] dominantColor;
+    @Column(name = "palette_weights", columnDefinition = "integer[]")
+    private int[] paletteWeights;
+
+    // L*a*b values of the dominant color, kept in sync by ProductLabListener for database-side color searches
+    @JsonIgnore
+    @Column(name = "lab_l", columnDefinition = "real")
+    private Float labL;
+
+    @JsonIgnore
+    @Column(name = "lab_a", columnDefinition = "real")
+    private Float labA;
+
+    @JsonIgnore
+    @Column(name = "lab_b", columnDefinition = "real")
+    private Float labB;
+
+    // last time the dominant color was changed, for incremental recomputes of the color neighbours
+    @JsonIgnore
+    @Column(name = "color_updated_at")
+    private Instant colorUpdatedAt;
+
+    // last time the product was written, for catching the color index up from its snapshot file
+    @JsonIgnore
+    @UpdateTimestamp
+    @Column(name = "updated_at")
+    private Instant updatedAt;
 
     public Product() {
         // empty
@@ -75,7 +123,30 @@ public class Product {
         this.sleeve = sleeve;
         this.photo = path;
         this.url = url;
-        this.dominantColor = dominantColor;
+        setDominantColor(dominantColor);
+    }
+
+    /**
+     * Copies a product, with its own palette arrays, e.g. to hand out a cached product that callers may modify.
+     *
+     * @param product the product to copy
+     */
+    public Product(Product product) {
+        this.id = product.id;
+        this.title = product.title;
+        this.genderId = product.genderId;
+        this.composition = product.composition;
+        this.sleeve = product.sleeve;
+        this.photo = product.photo;
+        this.url = product.url;
+        this.dominantRgb = product.dominantRgb;
+        this.paletteColors = product.paletteColors == null ? null : product.paletteColors.clone();
+        this.paletteWeights = product.paletteWeights == null ? null : product.paletteWeights.clone();
+        this.labL = product.labL;
+        this.labA = product.labA;
+        this.labB = product.labB;
+        this.colorUpdatedAt = product.colorUpdatedAt;
+        this.updatedAt = product.updatedAt;
     }
 
     public String getId() {
@@ -135,11 +206,81 @@ public class Product {
     }
 
     public int[] getDominantColor() {
-        return dominantColor;
+        return dominantRgb == null ? null : ColorProximity.unpackRgb(dominantRgb);
     }
 
     public void setDominantColor(int[] dominantColor) {
-        this.dominantColor = dominantColor;
+        setDominantRgb(dominantColor == null ? null : ColorProximity.packRgb(dominantColor));
+    }
+
+    public Integer getDominantRgb() {
+        return dominantRgb;
+    }
+
+    public void setDominantRgb(Integer dominantRgb) {
+        if (!Objects.equals(this.dominantRgb, dominantRgb)) {
+            colorUpdatedAt = Instant.now();
+        }
+        this.dominantRgb = dominantRgb;
+    }
+
+    public Instant getColorUpdatedAt() {
+        return colorUpdatedAt;
+    }
+
+    public Instant getUpdatedAt() {
+        return updatedAt;
+    }
+
+    public Float getLabL() {
+        return labL;
+    }
+
+    public Float getLabA() {
+        return labA;
+    }
+
+    public Float getLabB() {
+        return labB;
+    }
+
+    public void setLab(Float labL, Float labA, Float labB) {
+        this.labL = labL;
+        this.labA = labA;
+        this.labB = labB;
+    }
+
+    public int[] getPaletteColors() {
+        return paletteColors;
+    }
+
+    public int[] getPaletteWeights() {
+        return paletteWeights;
+    }
+
+    @JsonIgnore
+    public ColorPalette getPalette() {
+        if (paletteColors == null) {
+            return null;
+        }
+        float[] weights = new float[paletteWeights.length];
+        for (int i = 0; i < weights.length; i++) {
+            weights[i] = paletteWeights[i] / 10000f;
+        }
+        return new ColorPalette(paletteColors, weights);
+    }
+
+    public void setPalette(ColorPalette palette) {
+        if (palette == null) {
+            paletteColors = null;
+            paletteWeights = null;
+            return;
+        }
+        paletteColors = palette.getColors();
+        paletteWeights = new int[palette.size()];
+        for (int i = 0; i < paletteWeights.length; i++) {
+            paletteWeights[i] = Math.round(palette.getWeights()[i] * 10000);
+        }
     }
 
     @Override
@@ -152,7 +293,7 @@ public class Product {
                 ", sleeve='" + sleeve + '\'' +
                 ", path='" + photo + '\'' +
                 ", url='" + url + '\'' +
-                ", dominantColor='" + Arrays.toString(dominantColor) + '\'' +
+                ", dominantColor='" + Arrays.toString(getDominantColor()) + '\'' +
                 '}';
     }
 }
@@ -0,0 +1,80 @@
+package com.rmeunier.colormatchapi.model;
+
+import javax.persistence.*;
+import java.time.Instant;
+
+/**
+ * One precomputed color neighbour of a product: the product of the given rank among its closest colors.
+ * Written by the colorNeighboursJob.
+ */
+@Entity
+@Table(name = "product_color_neighbours",
+        indexes = {
+                @Index(name = "product_color_neighbours_neighbour_idx", columnList = "neighbour_id")
+        })
+@IdClass(ProductColorNeighbourId.class)
+public class ProductColorNeighbour {
+
+    @Id
+    @Column(name = "product_id", length = 20, nullable = false)
+    private String productId;
+
+    // 0 for the closest neighbour
+    @Id
+    @Column(name = "neighbour_rank", nullable = false)
+    private int neighbourRank;
+
+    @Column(name = "neighbour_id", length = 20, nullable = false)
+    private String neighbourId;
+
+    @Column(name = "distance", nullable = false)
+    private double distance;
+
+    // time the neighbours were ranked at, only color writes committed before it are reflected
+    @Column(name = "computed_at")
+    private Instant computedAt;
+
+    public ProductColorNeighbour() {
+        // empty
+    }
+
+    public ProductColorNeighbour(String productId, int neighbourRank, String neighbourId, double distance,
+                                 Instant computedAt) {
+        this.productId = productId;
+        this.neighbourRank = neighbourRank;
+        this.neighbourId = neighbourId;
+        this.distance = distance;
+        this.computedAt = computedAt;
+    }
+
+    public String getProductId() {
+        return productId;
+    }
+
+    public int getNeighbourRank() {
+        return neighbourRank;
+    }
+
+    public String getNeighbourId() {
+        return neighbourId;
+    }
+
+    public double getDistance() {
+        return distance;
+    }
+
+    public Instant getComputedAt() {
+        return computedAt;
+    }
+
+    @Override
+    public String toString() {
+        return "ProductColorNeighbour{" +
+                "productId='" + productId + '\'' +
+                ", neighbourRank=" + neighbourRank +
+                ", neighbourId='" + neighbourId + '\'' +
+                ", distance=" + distance +
+                ", computedAt=" + computedAt +
+                '}';
+    }
+}
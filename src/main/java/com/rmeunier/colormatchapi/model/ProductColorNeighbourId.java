@@ -0,0 +1,40 @@
+package com.rmeunier.colormatchapi.model;
+
+import java.io.Serializable;
+import java.util.Objects;
+
+/**
+ * Primary key of a ProductColorNeighbour: the product and the rank of the neighbour.
+ */
+public class ProductColorNeighbourId implements Serializable {
+
+    private String productId;
+
+    private int neighbourRank;
+
+    public ProductColorNeighbourId() {
+        // empty
+    }
+
+    public ProductColorNeighbourId(String productId, int neighbourRank) {
+        this.productId = productId;
+        this.neighbourRank = neighbourRank;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (o == null || getClass() != o.getClass()) {
+            return false;
+        }
+        ProductColorNeighbourId that = (ProductColorNeighbourId) o;
+        return neighbourRank == that.neighbourRank && Objects.equals(productId, that.productId);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(productId, neighbourRank);
+    }
+}
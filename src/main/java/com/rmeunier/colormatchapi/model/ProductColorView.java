@@ -0,0 +1,13 @@
+package com.rmeunier.colormatchapi.model;
+
+/**
+ * Closed projection of a Product holding only the fields needed for color matching,
+ * so the color index can be built without hydrating full Product entities.
+ */
+public interface ProductColorView {
+    String getId();
+    Integer getDominantRgb();
+    GenderId getGenderId();
+    String getSleeve();
+    String getComposition();
+}
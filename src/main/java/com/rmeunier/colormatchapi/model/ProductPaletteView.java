@@ -0,0 +1,11 @@
+package com.rmeunier.colormatchapi.model;
+
+/**
+ * Closed projection of a Product holding only its palette, so the palette index can be built
+ * without hydrating full Product entities.
+ */
+public interface ProductPaletteView {
+    String getId();
+    int[] getPaletteColors();
+    int[] getPaletteWeights();
+}
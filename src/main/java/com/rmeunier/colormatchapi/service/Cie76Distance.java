@@ -0,0 +1,21 @@
+package com.rmeunier.colormatchapi.service;
+
+/**
+ * CIE76 distance: the Euclidean distance of the L*a*b values, as it has always been computed by this API,
+ * with L scaled to 0..255. This is the metric of the color index itself.
+ */
+public class Cie76Distance implements ColorDistance {
+
+    @Override
+    public double distance(int referenceLab, int lab) {
+        int dl = ColorProximity.lightness(referenceLab) - ColorProximity.lightness(lab);
+        int da = ColorProximity.greenRed(referenceLab) - ColorProximity.greenRed(lab);
+        int db = ColorProximity.blueYellow(referenceLab) - ColorProximity.blueYellow(lab);
+        return Math.sqrt(dl * dl + da * da + db * db);
+    }
+
+    @Override
+    public double lowerBoundFactor(int referenceLab) {
+        return 1;
+    }
+}
@@ -0,0 +1,51 @@
+package com.rmeunier.colormatchapi.service;
+
+/**
+ * CIE94 distance (graphic arts weights), on L*a*b values with L in 0..100.
+ * The chroma and hue differences are weighted by the reference color's chroma, which corrects
+ * the overestimation of differences between saturated colors by CIE76.
+ */
+public class Cie94Distance implements ColorDistance {
+
+    private static final double K1 = 0.045;
+    private static final double K2 = 0.015;
+
+    // the color index scales L by this factor
+    private static final double L_SCALE = 2.55;
+
+    @Override
+    public double distance(int referenceLab, int lab) {
+        double l1 = ColorProximity.lightness(referenceLab) / L_SCALE;
+        double a1 = ColorProximity.greenRed(referenceLab);
+        double b1 = ColorProximity.blueYellow(referenceLab);
+        double l2 = ColorProximity.lightness(lab) / L_SCALE;
+        double a2 = ColorProximity.greenRed(lab);
+        double b2 = ColorProximity.blueYellow(lab);
+
+        double c1 = Math.sqrt(a1 * a1 + b1 * b1);
+        double c2 = Math.sqrt(a2 * a2 + b2 * b2);
+
+        double dl = l1 - l2;
+        double dc = c1 - c2;
+        double da = a1 - a2;
+        double db = b1 - b2;
+        double dhSq = Math.max(da * da + db * db - dc * dc, 0);
+
+        double sc = 1 + K1 * c1;
+        double sh = 1 + K2 * c1;
+
+        return Math.sqrt(dl * dl + (dc / sc) * (dc / sc) + dhSq / (sh * sh));
+    }
+
+    /**
+     * As SL = 1 <= SH <= SC, and the squared chroma and hue differences add up to the squared a and b differences,
+     * CIE94 is at least CIE76 / SC on true L values, and the index's CIE76 scales the L difference by 2.55.
+     */
+    @Override
+    public double lowerBoundFactor(int referenceLab) {
+        double a = ColorProximity.greenRed(referenceLab);
+        double b = ColorProximity.blueYellow(referenceLab);
+        double sc = 1 + K1 * Math.sqrt(a * a + b * b);
+        return 1 / Math.max(L_SCALE, sc);
+    }
+}
@@ -0,0 +1,99 @@
+package com.rmeunier.colormatchapi.service;
+
+/**
+ * CIEDE2000 distance, on L*a*b values with L in 0..100, following Sharma, Wu and Dalal's implementation notes.
+ * It is the most accurate of the metrics, notably for blues and near-neutral colors, and also the most expensive.
+ */
+public class Ciede2000Distance implements ColorDistance {
+
+    // the color index scales L by this factor
+    private static final double L_SCALE = 2.55;
+
+    private static final double POW25_7 = Math.pow(25, 7);
+
+    @Override
+    public double distance(int referenceLab, int lab) {
+        return deltaE(ColorProximity.lightness(referenceLab) / L_SCALE, ColorProximity.greenRed(referenceLab),
+                ColorProximity.blueYellow(referenceLab), ColorProximity.lightness(lab) / L_SCALE,
+                ColorProximity.greenRed(lab), ColorProximity.blueYellow(lab));
+    }
+
+    /**
+     * The rotation term can make CIEDE2000 arbitrarily small compared to CIE76, so there is no bound:
+     * the index re-ranks a fixed number of its closest candidates instead.
+     */
+    @Override
+    public double lowerBoundFactor(int referenceLab) {
+        return 0;
+    }
+
+    public static double deltaE(double l1, double a1, double b1, double l2, double a2, double b2) {
+        double c1 = Math.sqrt(a1 * a1 + b1 * b1);
+        double c2 = Math.sqrt(a2 * a2 + b2 * b2);
+        double cBar7 = Math.pow((c1 + c2) / 2, 7);
+        double g = 0.5 * (1 - Math.sqrt(cBar7 / (cBar7 + POW25_7)));
+
+        double a1p = (1 + g) * a1;
+        double a2p = (1 + g) * a2;
+        double c1p = Math.sqrt(a1p * a1p + b1 * b1);
+        double c2p = Math.sqrt(a2p * a2p + b2 * b2);
+        double h1p = hueAngle(a1p, b1);
+        double h2p = hueAngle(a2p, b2);
+
+        double dLp = l2 - l1;
+        double dCp = c2p - c1p;
+
+        double dhp;
+        if (c1p * c2p == 0) {
+            dhp = 0;
+        } else if (Math.abs(h2p - h1p) <= 180) {
+            dhp = h2p - h1p;
+        } else if (h2p - h1p > 180) {
+            dhp = h2p - h1p - 360;
+        } else {
+            dhp = h2p - h1p + 360;
+        }
+        double dHp = 2 * Math.sqrt(c1p * c2p) * Math.sin(Math.toRadians(dhp / 2));
+
+        double lBarP = (l1 + l2) / 2;
+        double cBarP = (c1p + c2p) / 2;
+
+        double hBarP;
+        if (c1p * c2p == 0) {
+            hBarP = h1p + h2p;
+        } else if (Math.abs(h1p - h2p) <= 180) {
+            hBarP = (h1p + h2p) / 2;
+        } else if (h1p + h2p < 360) {
+            hBarP = (h1p + h2p + 360) / 2;
+        } else {
+            hBarP = (h1p + h2p - 360) / 2;
+        }
+
+        double t = 1 - 0.17 * Math.cos(Math.toRadians(hBarP - 30))
+                + 0.24 * Math.cos(Math.toRadians(2 * hBarP))
+                + 0.32 * Math.cos(Math.toRadians(3 * hBarP + 6))
+                - 0.20 * Math.cos(Math.toRadians(4 * hBarP - 63));
+        double dTheta = 30 * Math.exp(-Math.pow((hBarP - 275) / 25, 2));
+        double cBarP7 = Math.pow(cBarP, 7);
+        double rc = 2 * Math.sqrt(cBarP7 / (cBarP7 + POW25_7));
+        double lBarP50Sq = (lBarP - 50) * (lBarP - 50);
+        double sl = 1 + 0.015 * lBarP50Sq / Math.sqrt(20 + lBarP50Sq);
+        double sc = 1 + 0.045 * cBarP;
+        double sh = 1 + 0.015 * cBarP * t;
+        double rt = -Math.sin(Math.toRadians(2 * dTheta)) * rc;
+
+        double lTerm = dLp / sl;
+        double cTerm = dCp / sc;
+        double hTerm = dHp / sh;
+
+        return Math.sqrt(lTerm * lTerm + cTerm * cTerm + hTerm * hTerm + rt * cTerm * hTerm);
+    }
+
+    private static double hueAngle(double ap, double b) {
+        if (ap == 0 && b == 0) {
+            return 0;
+        }
+        double h = Math.toDegrees(Math.atan2(b, ap));
+        return h < 0 ? h + 360 : h;
+    }
+}
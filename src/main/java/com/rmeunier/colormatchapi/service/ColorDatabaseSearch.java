@@ -0,0 +1,150 @@
+package com.rmeunier.colormatchapi.service;
+
+import com.rmeunier.colormatchapi.dao.ProductLabListener;
+import com.rmeunier.colormatchapi.dao.ProductRepository;
+import com.rmeunier.colormatchapi.model.Product;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Pageable;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Color search done inside PostgreSQL on the stored L*a*b columns, used when color-search.engine is DATABASE.
+ * Neither the application's heap nor the transferred data grows with the catalog: only the n results are loaded.
+ *
+ * The database ranks the products inside a box around the reference color, which can use the index on the
+ * L*a*b columns. The box is doubled until the n-th result is closer than the box's half edge,
+ * as then no product outside of the box can be closer.
+ */
+@Component
+public class ColorDatabaseSearch {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ColorDatabaseSearch.class);
+
+    // a box of this half edge contains the whole L*a*b space
+    private static final float MAX_RADIUS = 512;
+
+    private static final int BACKFILL_PAGE_SIZE = 500;
+
+    private final ProductRepository productRepository;
+
+    private final ColorProximity colorProximity;
+
+    @Value("${color-search.database.initial-radius:10}")
+    private float initialRadius;
+
+    @Autowired
+    public ColorDatabaseSearch(ProductRepository productRepository, ColorProximity colorProximity) {
+        this.productRepository = productRepository;
+        this.colorProximity = colorProximity;
+    }
+
+    /**
+     * Finds the n products that have the closest dominant color to the given reference color.
+     *
+     * @param color      the reference RGB vector
+     * @param n          the number of products to retrieve
+     * @param excludedId the id of a product to leave out of the results, can be null
+     * @return the n closest products, closest first
+     */
+    public List<Product> findClosest(int[] color, int n, String excludedId) {
+        return findClosestToLab(colorProximity.labOf(ColorProximity.packRgb(color)), n, excludedId,
+                new ColorSearchOptions());
+    }
+
+    /**
+     * Finds the n products that have the closest dominant color to the given reference L*a*b color.
+     * Only the facet filters of the options are used: the ranking is always exact and by CIE76.
+     *
+     * @param lab        the reference packed L*a*b color
+     * @param n          the number of products to retrieve
+     * @param excludedId the id of a product to leave out of the results, can be null
+     * @param options    the search options
+     * @return the n closest products, closest first
+     */
+    public List<Product> findClosestToLab(int lab, int n, String excludedId, ColorSearchOptions options) {
+        if (n <= 0) {
+            return new ArrayList<>();
+        }
+
+        float l = ColorProximity.lightness(lab);
+        float a = ColorProximity.greenRed(lab);
+        float b = ColorProximity.blueYellow(lab);
+        String excluded = excludedId == null ? "" : excludedId;
+        String genderId = options.getGenderId() == null ? "" : options.getGenderId().name();
+        String sleeve = options.getSleeve() == null ? "" : options.getSleeve();
+        String composition = options.getComposition() == null ? "" : options.getComposition();
+
+        float radius = Math.max(initialRadius, 1);
+        while (true) {
+            List<Product> products = productRepository.findClosestByLab(l, a, b,
+                    Math.min(radius, MAX_RADIUS), excluded, genderId, sleeve, composition, n);
+
+            if (radius >= MAX_RADIUS) {
+                return products;
+            }
+
+            if (products.size() == n && distance(products.get(n - 1), l, a, b) <= radius) {
+                return products;
+            }
+
+            radius *= 2;
+        }
+    }
+
+    /**
+     * Finds a page of the products whose dominant color is within a distance of the reference L*a*b color,
+     * closest first.
+     *
+     * @param lab        the reference packed L*a*b color
+     * @param distance   the maximum color distance
+     * @param excludedId the id of a product to leave out of the results, can be null
+     * @param pageable   the page to return
+     * @return the page of products
+     */
+    public Page<Product> findWithinDistance(int lab, double distance, String excludedId, Pageable pageable) {
+        return productRepository.findWithinLab(ColorProximity.lightness(lab), ColorProximity.greenRed(lab),
+                ColorProximity.blueYellow(lab), (float) distance, excludedId == null ? "" : excludedId, pageable);
+    }
+
+    /**
+     * Fills the L*a*b columns of the products colored before the columns existed.
+     * New writes are handled by the ProductLabListener.
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void backfillLabColumns() {
+        ProductLabListener labListener = new ProductLabListener(colorProximity);
+        int count = 0;
+
+        List<Product> products = productRepository.findByDominantRgbIsNotNullAndLabLIsNull(
+                PageRequest.of(0, BACKFILL_PAGE_SIZE));
+        while (!products.isEmpty()) {
+            products.forEach(labListener::updateLab);
+            productRepository.saveAll(products);
+            count += products.size();
+
+            products = productRepository.findByDominantRgbIsNotNullAndLabLIsNull(
+                    PageRequest.of(0, BACKFILL_PAGE_SIZE));
+        }
+
+        if (count > 0) {
+            LOGGER.info("Filled L*a*b columns for {} products", count);
+        }
+    }
+
+    private static double distance(Product product, float l, float a, float b) {
+        double dl = product.getLabL() - l;
+        double da = product.getLabA() - a;
+        double db = product.getLabB() - b;
+        return Math.sqrt(dl * dl + da * da + db * db);
+    }
+}
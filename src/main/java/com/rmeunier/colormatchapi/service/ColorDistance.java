@@ -0,0 +1,28 @@
+package com.rmeunier.colormatchapi.service;
+
+/**
+ * Strategy for the distance between two packed L*a*b colors, used to rank color search results.
+ *
+ * Every metric also gives a lower bound relative to the CIE76 distance of the color index,
+ * so that the index can prune candidates with its cheap metric and only compute the exact one for the survivors.
+ */
+public interface ColorDistance {
+
+    /**
+     * Calculates the distance of a color to the reference color.
+     *
+     * @param referenceLab the reference packed L*a*b color
+     * @param lab          the packed L*a*b color to compare
+     * @return the distance
+     */
+    double distance(int referenceLab, int lab);
+
+    /**
+     * The largest factor s so that for any color x, distance(reference, x) >= s * CIE76(reference, x),
+     * with CIE76 as computed by the color index (L scaled to 0..255).
+     *
+     * @param referenceLab the reference packed L*a*b color
+     * @return the factor, or 0 if the metric has no such bound
+     */
+    double lowerBoundFactor(int referenceLab);
+}
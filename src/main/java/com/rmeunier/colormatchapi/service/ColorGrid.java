@@ -0,0 +1,175 @@
+package com.rmeunier.colormatchapi.service;
+
+/**
+ * Uniform grid over 3-D L*a*b* points, answering approximate nearest neighbour queries.
+ *
+ * Every point is bucketed into a cubic cell. A query visits the reference cell, then the rings of cells around it
+ * in order of distance, and stops after the number of rings given by the probe once enough points were found.
+ * A smaller probe is faster, a larger one gets closer to the exact result.
+ * The points of each cell are stored contiguously, so every cell is a sequential scan.
+ */
+public class ColorGrid {
+
+    private final float cellSize;
+
+    private final float[] min = new float[3];
+
+    private final int[] dims = new int[3];
+
+    // points of cell c are at positions [cellStart[c], cellStart[c + 1])
+    private final int[] cellStart;
+
+    // point indices, in cell order
+    private final int[] points;
+
+    // coordinates, in cell order
+    private final float[][] coords;
+
+    /**
+     * Builds the grid over the given points. The arrays are not modified.
+     *
+     * @param l        the L values of the points
+     * @param a        the a values of the points
+     * @param b        the b values of the points
+     * @param cellSize the edge length of a cell, in Lab units
+     */
+    public ColorGrid(float[] l, float[] a, float[] b, float cellSize) {
+        this(l, a, b, null, cellSize);
+    }
+
+    /**
+     * Builds the grid over a subset of the given points, e.g. a partition of the catalog.
+     * The points keep their indices in the arrays. The arrays are not modified.
+     *
+     * @param l        the L values of the points
+     * @param a        the a values of the points
+     * @param b        the b values of the points
+     * @param indices  the indices of the points to build the grid over, or null for all of them
+     * @param cellSize the edge length of a cell, in Lab units
+     */
+    public ColorGrid(float[] l, float[] a, float[] b, int[] indices, float cellSize) {
+        if (cellSize <= 0) {
+            throw new IllegalArgumentException("Error: cell size has to be positive!");
+        }
+        this.cellSize = cellSize;
+
+        float[][] values = {l, a, b};
+        int size = indices == null ? l.length : indices.length;
+
+        for (int axis = 0; axis < 3; axis++) {
+            float axisMin = Float.POSITIVE_INFINITY;
+            float axisMax = Float.NEGATIVE_INFINITY;
+            for (int i = 0; i < size; i++) {
+                float value = values[axis][indices == null ? i : indices[i]];
+                axisMin = Math.min(axisMin, value);
+                axisMax = Math.max(axisMax, value);
+            }
+            min[axis] = size == 0 ? 0 : axisMin;
+            dims[axis] = size == 0 ? 1 : (int) ((axisMax - axisMin) / cellSize) + 1;
+        }
+
+        // counting sort of the points by cell
+        int[] cells = new int[size];
+        cellStart = new int[dims[0] * dims[1] * dims[2] + 1];
+        for (int i = 0; i < size; i++) {
+            int index = indices == null ? i : indices[i];
+            cells[i] = cellOf(l[index], a[index], b[index]);
+            cellStart[cells[i] + 1]++;
+        }
+        for (int c = 0; c < cellStart.length - 1; c++) {
+            cellStart[c + 1] += cellStart[c];
+        }
+
+        points = new int[size];
+        coords = new float[3][size];
+        int[] next = new int[cellStart.length - 1];
+        System.arraycopy(cellStart, 0, next, 0, next.length);
+        for (int i = 0; i < size; i++) {
+            int index = indices == null ? i : indices[i];
+            int position = next[cells[i]]++;
+            points[position] = index;
+            for (int axis = 0; axis < 3; axis++) {
+                coords[axis][position] = values[axis][index];
+            }
+        }
+    }
+
+    /**
+     * Finds close points to the reference point, feeding them into the selector.
+     * At least the given number of rings is visited, then more until the selector is full.
+     * The search also stops early once no point in the next ring can beat the selector's worst distance,
+     * in which case the result is exact.
+     *
+     * @param refL     the reference L value
+     * @param refA     the reference a value
+     * @param refB     the reference b value
+     * @param excluded the index of a point to skip, or -1
+     * @param probe    the number of rings of cells to visit around the reference cell
+     * @param selector the selector collecting the (squared distance, point index) pairs
+     */
+    public void nearest(float refL, float refA, float refB, int excluded, int probe, TopKSelector selector) {
+        float[] ref = {refL, refA, refB};
+        int[] center = new int[3];
+        for (int axis = 0; axis < 3; axis++) {
+            center[axis] = cellCoordinate(ref[axis], axis);
+        }
+        int maxRing = Math.max(dims[0], Math.max(dims[1], dims[2]));
+
+        for (int ring = 0; ring <= maxRing; ring++) {
+            visitRing(center, ring, ref, excluded, selector);
+
+            if (selector.isFull()) {
+                // any point of the next ring is at least `ring` whole cells away from the reference
+                double bound = ring * cellSize;
+                if (ring >= probe || bound * bound > selector.worstDistance()) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private void visitRing(int[] center, int ring, float[] ref, int excluded, TopKSelector selector) {
+        int lFrom = Math.max(center[0] - ring, 0);
+        int lTo = Math.min(center[0] + ring, dims[0] - 1);
+        int aFrom = Math.max(center[1] - ring, 0);
+        int aTo = Math.min(center[1] + ring, dims[1] - 1);
+        int bFrom = Math.max(center[2] - ring, 0);
+        int bTo = Math.min(center[2] + ring, dims[2] - 1);
+
+        for (int cl = lFrom; cl <= lTo; cl++) {
+            boolean lOnRing = Math.abs(cl - center[0]) == ring;
+            for (int ca = aFrom; ca <= aTo; ca++) {
+                boolean aOnRing = lOnRing || Math.abs(ca - center[1]) == ring;
+                for (int cb = bFrom; cb <= bTo; cb++) {
+                    // only the surface of the cube, the inside was visited by the previous rings
+                    if (aOnRing || Math.abs(cb - center[2]) == ring) {
+                        visitCell((cl * dims[1] + ca) * dims[2] + cb, ref, excluded, selector);
+                    }
+                }
+            }
+        }
+    }
+
+    private void visitCell(int cell, float[] ref, int excluded, TopKSelector selector) {
+        for (int position = cellStart[cell]; position < cellStart[cell + 1]; position++) {
+            int index = points[position];
+            if (index == excluded) {
+                continue;
+            }
+
+            double dl = coords[0][position] - ref[0];
+            double da = coords[1][position] - ref[1];
+            double db = coords[2][position] - ref[2];
+            selector.offer(dl * dl + da * da + db * db, index);
+        }
+    }
+
+    private int cellOf(float l, float a, float b) {
+        return (cellCoordinate(l, 0) * dims[1] + cellCoordinate(a, 1)) * dims[2] + cellCoordinate(b, 2);
+    }
+
+    private int cellCoordinate(float value, int axis) {
+        int coordinate = (int) Math.floor((value - min[axis]) / cellSize);
+        return Math.max(0, Math.min(coordinate, dims[axis] - 1));
+    }
+}
@@ -0,0 +1,970 @@
+package com.rmeunier.colormatchapi.service;
+
+import com.rmeunier.colormatchapi.dao.ProductRepository;
+import com.rmeunier.colormatchapi.model.GenderId;
+import com.rmeunier.colormatchapi.model.ProductColorView;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.PageImpl;
+import org.springframework.data.domain.Pageable;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.IntConsumer;
+import java.util.stream.Collectors;
+
+/**
+ * In-memory index of the L*a*b* values of every product that has a dominant color.
+ * The Lab values are computed once when the index is built, and are kept in primitive parallel arrays
+ * ordered by product id, so a color search only has to convert the reference color.
+ *
+ * Searches go through a k-d tree over the Lab values, or through a plain scan of the arrays
+ * when color-search.engine is set to BRUTE, which can be used to verify the tree's results.
+ * On large catalogs, the BRUTE scan is split into ranges on a dedicated ForkJoinPool,
+ * each range keeping its own top-K which are merged at the end.
+ * Approximate searches go through a uniform grid over the Lab values instead.
+ * The index is also partitioned by the facets of the products (gender, sleeve and composition), each partition
+ * having its own tree and grid, so a filtered search only goes through the partitions matching its filters.
+ * Searches with another metric than CIE76 take the closest candidates by CIE76 through the same paths,
+ * and re-rank them with the exact metric.
+ * When color-search.engine is DATABASE, searches are done by ColorDatabaseSearch and this index is not used.
+ *
+ * The index is built when the application starts. Products written afterwards are applied to it as they are
+ * committed, without rebuilding: searches go through an immutable view made of the base snapshot, the set of its
+ * entries replaced since then, and a small delta of the written products, scanned after the base.
+ * Every write publishes a new view (copy-on-write), so searches never wait for writes. Once the delta grows
+ * past a threshold, the snapshot is rebuilt in the background. Until then, equal distances between a base
+ * and a delta product are not ordered by id.
+ *
+ * When color-search.snapshot-file is set, every built snapshot is also written to that file. On start-up,
+ * the index is restored from it and only the products written since it was taken are read from the database,
+ * instead of the whole table. The index is rebuilt from the database when the file is missing or unreadable,
+ * when too many products were written since, or when products were deleted since.
+ */
+@Component
+public class ColorIndex {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ColorIndex.class);
+
+    // 4096 points of 3 floats take 48 KB, which stays in the L2 cache while all references are scanned
+    private static final int BATCH_TILE_SIZE = 4096;
+
+    // products written this long before a snapshot was taken are read again when it is restored,
+    // as their transactions may not have been committed yet when the snapshot read the catalog
+    private static final Duration CATCH_UP_MARGIN = Duration.ofMinutes(5);
+
+    private final ProductRepository productRepository;
+
+    private final ColorProximity colorProximity;
+
+    @Value("${color-search.engine:KDTREE}")
+    private SearchEngine engine;
+
+    @Value("${color-search.approx.cell-size:8}")
+    private float cellSize;
+
+    // 0 for the number of available processors
+    @Value("${color-search.parallelism:0}")
+    private int parallelism;
+
+    @Value("${color-search.parallel-threshold:100000}")
+    private int parallelThreshold;
+
+    // number of CIE76 candidates re-ranked per result, for metrics other than CIE76
+    @Value("${color-search.rerank-factor:10}")
+    private int rerankFactor;
+
+    // products written since the last build after which the index is rebuilt in the background
+    @Value("${color-search.compaction-threshold:4096}")
+    private int compactionThreshold;
+
+    // file the snapshots of the index are written to and restored from, empty to disable
+    @Value("${color-search.snapshot-file:}")
+    private String snapshotFile;
+
+    private ForkJoinPool scanPool;
+
+    private ExecutorService compactionExecutor;
+
+    private final AtomicBoolean compacting = new AtomicBoolean();
+
+    private final Object rebuildLock = new Object();
+
+    // guards the publication of views and the pending changes
+    private final Object changeLock = new Object();
+
+    private volatile View view;
+
+    private volatile boolean stale = true;
+
+    // changes applied while a rebuild loads the products, null otherwise
+    private List<Change> pendingChanges;
+
+    @Autowired
+    public ColorIndex(ProductRepository productRepository, ColorProximity colorProximity) {
+        this.productRepository = productRepository;
+        this.colorProximity = colorProximity;
+    }
+
+    /**
+     * Finds the n products that have the closest dominant color to the given reference color.
+     *
+     * @param color      the reference RGB vector
+     * @param n          the number of matches to retrieve
+     * @param excludedId the id of a product to leave out of the results (e.g. the reference product), can be null
+     * @return the n closest matches, closest first
+     */
+    public List<ColorMatch> findClosest(int[] color, int n, String excludedId) {
+        return findClosest(color, n, excludedId, new ColorSearchOptions());
+    }
+
+    /**
+     * Finds the n products that have the closest dominant color to the given reference color.
+     *
+     * @param color      the reference RGB vector
+     * @param n          the number of matches to retrieve
+     * @param excludedId the id of a product to leave out of the results (e.g. the reference product), can be null
+     * @param options    the search options
+     * @return the n closest matches, closest first
+     */
+    public List<ColorMatch> findClosest(int[] color, int n, String excludedId, ColorSearchOptions options) {
+        return findClosestToLab(colorProximity.labOf(ColorProximity.packRgb(color)), n, excludedId, options);
+    }
+
+    /**
+     * Finds the n products that have the closest dominant color to the given reference L*a*b color.
+     * The candidates are kept in a bounded heap, and equal distances are ordered by product id.
+     *
+     * @param lab        the reference packed L*a*b color
+     * @param n          the number of matches to retrieve
+     * @param excludedId the id of a product to leave out of the results, can be null
+     * @param options    the search options
+     * @return the n closest matches, closest first
+     */
+    public List<ColorMatch> findClosestToLab(int lab, int n, String excludedId, ColorSearchOptions options) {
+        View current = getView();
+        float[] ref = {ColorProximity.lightness(lab), ColorProximity.greenRed(lab), ColorProximity.blueYellow(lab)};
+        int excluded = current.indexOf(excludedId);
+        int k = Math.max(Math.min(n, current.size()), 0);
+
+        if (options.getMetric() == ColorSearchOptions.Metric.CIE76 || k == 0) {
+            return current.toMatches(select(current, ref, excluded, k, options));
+        }
+
+        return current.toMatches(rerank(current, lab, ref, excluded, k, options));
+    }
+
+    /**
+     * Ranks the closest candidates by CIE76 with the exact metric of the options.
+     * When the metric gives a lower bound relative to CIE76, the number of candidates is multiplied
+     * until the bound proves that no other product can be closer than the k-th result, so the results are exact.
+     * Otherwise, and in APPROX mode, a fixed number of candidates (color-search.rerank-factor per result) is re-ranked.
+     */
+    private TopKSelector rerank(View current, int lab, float[] ref, int excluded, int k,
+                                ColorSearchOptions options) {
+        ColorDistance colorDistance = options.getMetric().getDistance();
+        double factor = colorDistance.lowerBoundFactor(lab);
+        int m = (int) Math.min((long) k * Math.max(rerankFactor, 1), current.size());
+
+        while (true) {
+            TopKSelector candidates = select(current, ref, excluded, m, options);
+            int count = candidates.sort();
+
+            // squared, as the matches take the square root of the selector's distances
+            TopKSelector exact = new TopKSelector(k);
+            for (int i = 0; i < count; i++) {
+                int index = candidates.indexAt(i);
+                double distance = colorDistance.distance(lab, current.labAt(index));
+                exact.offer(distance * distance, index);
+            }
+
+            // fewer candidates than asked for: every matching product has been ranked exactly already
+            if (count < m || m >= current.size() || factor <= 0
+                    || options.getMode() == ColorSearchOptions.Mode.APPROX) {
+                return exact;
+            }
+
+            // any product left out is at least as far as the m-th candidate by CIE76
+            double bound = factor * Math.sqrt(candidates.distanceAt(count - 1));
+            if (exact.isFull() && Math.sqrt(exact.worstDistance()) < bound) {
+                return exact;
+            }
+
+            m = (int) Math.min(m * 4L, current.size());
+        }
+    }
+
+    /**
+     * Selects the k closest products by CIE76 through the grid, the tree or a scan of the base snapshot,
+     * skipping its replaced entries, then through the products written since it was built.
+     * With facet filters, only the matching partitions are searched, all into the same selector.
+     */
+    private TopKSelector select(View current, float[] ref, int excluded, int k, ColorSearchOptions options) {
+        Snapshot base = current.base;
+        TopKSelector selector = current.newSelector(k);
+        if (options.hasFilters()) {
+            for (Partition partition : base.partitions) {
+                if (options.matches(partition.genderId, partition.sleeve, partition.composition)) {
+                    selectInPartition(base, partition, ref, excluded, options, selector);
+                }
+            }
+        } else if (options.getMode() == ColorSearchOptions.Mode.APPROX) {
+            base.grid.nearest(ref[0], ref[1], ref[2], excluded, options.getProbe(), selector);
+        } else if (engine == SearchEngine.KDTREE) {
+            base.tree.nearest(ref[0], ref[1], ref[2], excluded, selector);
+        } else if (scanPool != null && base.size() >= parallelThreshold) {
+            int rangeSize = Math.max(base.size() / (scanPool.getParallelism() * 4), 1);
+            ScanTask task = new ScanTask(current, 0, base.size(), rangeSize, ref, excluded, k);
+            selector = scanPool.invoke(task);
+        } else {
+            base.scan(0, base.size(), ref[0], ref[1], ref[2], excluded, selector);
+        }
+
+        current.scanDelta(ref, excluded, options, selector);
+        return selector;
+    }
+
+    private void selectInPartition(Snapshot base, Partition partition, float[] ref, int excluded,
+                                   ColorSearchOptions options, TopKSelector selector) {
+        if (options.getMode() == ColorSearchOptions.Mode.APPROX) {
+            partition.grid.nearest(ref[0], ref[1], ref[2], excluded, options.getProbe(), selector);
+        } else if (engine == SearchEngine.KDTREE) {
+            partition.tree.nearest(ref[0], ref[1], ref[2], excluded, selector);
+        } else {
+            for (int index : partition.members) {
+                if (index != excluded) {
+                    selector.offer(base.distanceSq(index, ref[0], ref[1], ref[2]), index);
+                }
+            }
+        }
+    }
+
+    /**
+     * Finds the n closest products for each of several reference L*a*b colors at once.
+     * With the BRUTE engine, all references share a single pass over the index: the index is cut into tiles
+     * small enough to stay in the CPU cache, and every reference is scanned against a tile before the next one.
+     * With the KDTREE engine, every reference is a tree query, which is cheaper than any full scan.
+     *
+     * @param labs        the reference packed L*a*b colors
+     * @param excludedIds for each reference, the id of a product to leave out of its results, can contain nulls
+     * @param n           the number of matches to retrieve per reference
+     * @return for each reference, in the same order, its n closest matches, closest first
+     */
+    public List<List<ColorMatch>> findClosestToLabs(int[] labs, String[] excludedIds, int n) {
+        View current = getView();
+        Snapshot base = current.base;
+        int count = labs.length;
+
+        float[][] refs = new float[count][];
+        int[] excluded = new int[count];
+        TopKSelector[] selectors = new TopKSelector[count];
+        for (int r = 0; r < count; r++) {
+            refs[r] = new float[] {ColorProximity.lightness(labs[r]),
+                    ColorProximity.greenRed(labs[r]), ColorProximity.blueYellow(labs[r])};
+            excluded[r] = current.indexOf(excludedIds[r]);
+            selectors[r] = current.newSelector(Math.max(Math.min(n, current.size()), 0));
+        }
+
+        if (engine == SearchEngine.KDTREE) {
+            for (int r = 0; r < count; r++) {
+                base.tree.nearest(refs[r][0], refs[r][1], refs[r][2], excluded[r], selectors[r]);
+            }
+        } else {
+            for (int from = 0; from < base.size(); from += BATCH_TILE_SIZE) {
+                int to = Math.min(from + BATCH_TILE_SIZE, base.size());
+                for (int r = 0; r < count; r++) {
+                    base.scan(from, to, refs[r][0], refs[r][1], refs[r][2], excluded[r], selectors[r]);
+                }
+            }
+        }
+
+        List<List<ColorMatch>> matches = new ArrayList<>(count);
+        for (int r = 0; r < count; r++) {
+            current.scanDelta(refs[r], excluded[r], null, selectors[r]);
+            matches.add(current.toMatches(selectors[r]));
+        }
+        return matches;
+    }
+
+    /**
+     * Finds every product whose dominant color is within a distance of the reference L*a*b color,
+     * closest first then by product id, and returns the requested page of them.
+     * The k-d tree prunes every branch farther than the distance, and only the matches up to the end of the
+     * requested page are kept, in a bounded selector: the others are only counted.
+     *
+     * @param lab        the reference packed L*a*b color
+     * @param distance   the maximum color distance (CIE76 delta E)
+     * @param excludedId the id of a product to leave out of the results, can be null
+     * @param pageable   the page to return
+     * @return the page of matches, with the total number of matches
+     */
+    public Page<ColorMatch> findWithinDistance(int lab, double distance, String excludedId, Pageable pageable) {
+        View current = getView();
+        float[] ref = {ColorProximity.lightness(lab), ColorProximity.greenRed(lab), ColorProximity.blueYellow(lab)};
+        int excluded = current.indexOf(excludedId);
+
+        // no more products than the view holds can match
+        int k = (int) Math.min(pageable.getOffset() + pageable.getPageSize(), current.size());
+        TopKSelector selector = current.newSelector(k);
+        int[] total = new int[1];
+        current.base.tree.withinRadius(ref[0], ref[1], ref[2], distance * distance, excluded, index -> {
+            if (!current.removed.get(index)) {
+                total[0]++;
+                selector.offer(current.base.distanceSq(index, ref[0], ref[1], ref[2]), index);
+            }
+        });
+        current.forEachDeltaWithin(ref, distance * distance, excluded, index -> {
+            total[0]++;
+            selector.offer(current.distanceSq(index, ref), index);
+        });
+
+        List<ColorMatch> matches = new ArrayList<>();
+        int count = selector.sort();
+        for (int i = (int) Math.min(pageable.getOffset(), count); i < count; i++) {
+            matches.add(new ColorMatch(current.idAt(selector.indexAt(i)), Math.sqrt(selector.distanceAt(i))));
+        }
+
+        return new PageImpl<>(matches, pageable, total[0]);
+    }
+
+    /**
+     * Measures the recall of an approximate search: the share of the exact n closest products
+     * that the approximate search with the given probe also returns.
+     *
+     * @param color      the reference RGB vector
+     * @param n          the number of matches to retrieve
+     * @param excludedId the id of a product to leave out of the results, can be null
+     * @param probe      the probe of the approximate search
+     * @return the recall, between 0 and 1
+     */
+    public double recall(int[] color, int n, String excludedId, int probe) {
+        ColorSearchOptions approxOptions = new ColorSearchOptions();
+        approxOptions.setMode(ColorSearchOptions.Mode.APPROX);
+        approxOptions.setProbe(probe);
+
+        Set<String> exactIds = findClosest(color, n, excludedId).stream()
+                .map(ColorMatch::getId)
+                .collect(Collectors.toSet());
+
+        if (exactIds.isEmpty()) {
+            return 1;
+        }
+
+        long found = findClosest(color, n, excludedId, approxOptions).stream()
+                .filter(match -> exactIds.contains(match.getId()))
+                .count();
+
+        return (double) found / exactIds.size();
+    }
+
+    /**
+     * Applies a written product to the live index: its previous entry, if any, is replaced.
+     * Should be called once the write is committed. Searches running meanwhile keep their view of the index.
+     *
+     * @param id            the id of the product
+     * @param dominantRgb   the dominant color of the product as 0xRRGGBB, null if it has none
+     * @param genderId      the gender of the product
+     * @param sleeve        the sleeve of the product
+     * @param composition   the composition of the product
+     */
+    public void update(String id, Integer dominantRgb, GenderId genderId, String sleeve, String composition) {
+        apply(changeOf(id, dominantRgb, genderId, sleeve, composition));
+    }
+
+    /**
+     * Removes a deleted product from the live index. Should be called once the delete is committed.
+     *
+     * @param id the id of the product
+     */
+    public void remove(String id) {
+        apply(new Change(id, null));
+    }
+
+    /**
+     * Marks the index as outdated, so it is rebuilt from the database on the next search.
+     * Only needed for writes that bypass JPA, as JPA writes are applied through update and remove.
+     */
+    public void invalidate() {
+        stale = true;
+    }
+
+    /**
+     * Creates the pool for parallel scans, unless parallelism is set to 1, and the thread compacting the index.
+     */
+    @PostConstruct
+    public void init() {
+        int threads = parallelism > 0 ? parallelism : Runtime.getRuntime().availableProcessors();
+        if (threads > 1) {
+            scanPool = new ForkJoinPool(threads);
+        }
+        compactionExecutor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "ColorIndexCompaction");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @PreDestroy
+    public void destroy() {
+        if (scanPool != null) {
+            scanPool.shutdown();
+        }
+        compactionExecutor.shutdownNow();
+    }
+
+    /**
+     * Builds the index on start-up, so the first color search does not have to wait for it.
+     * The index is restored from the snapshot file if possible, and rebuilt from the database otherwise.
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void onApplicationReady() {
+        if (engine != SearchEngine.DATABASE && !restore()) {
+            rebuild();
+        }
+    }
+
+    /**
+     * Restores the index from the snapshot file, then applies the products written since the snapshot was taken.
+     * Deleted products leave no trace to catch up from, so the number of products with a dominant color is
+     * compared with the database to detect them.
+     *
+     * @return true if the index was restored, false if it has to be rebuilt from the database instead
+     */
+    private boolean restore() {
+        if (snapshotFile.isEmpty() || !Files.exists(Paths.get(snapshotFile))) {
+            return false;
+        }
+
+        synchronized (rebuildLock) {
+            long start = System.currentTimeMillis();
+            ColorIndexFile file;
+            try {
+                file = ColorIndexFile.read(Paths.get(snapshotFile));
+            } catch (IOException e) {
+                LOGGER.warn("Color index snapshot could not be read! Error: {}", e.getMessage());
+                return false;
+            }
+
+            synchronized (changeLock) {
+                stale = false;
+                pendingChanges = new ArrayList<>();
+            }
+
+            // counted before reading the written products, so a product inserted meanwhile can only cause a rebuild
+            long count = productRepository.countByDominantRgbIsNotNull();
+            List<ProductColorView> written = productRepository.findByUpdatedAtAfterOrderByIdAsc(
+                    file.getCatalogVersion().minus(CATCH_UP_MARGIN));
+            if (written.size() > compactionThreshold) {
+                LOGGER.info("{} products were written since the color index snapshot, rebuilding it", written.size());
+                return false;
+            }
+
+            View next = new View(new Snapshot(file.getIds(), file.getL(), file.getA(), file.getB(),
+                    file.getGenderIds(), file.getSleeves(), file.getCompositions(), cellSize));
+            for (ProductColorView product : written) {
+                next = next.with(changeOf(product.getId(), product.getDominantRgb(), product.getGenderId(),
+                        product.getSleeve(), product.getComposition()));
+            }
+            if (next.size() != count) {
+                LOGGER.info("Products were deleted since the color index snapshot, rebuilding it");
+                return false;
+            }
+
+            synchronized (changeLock) {
+                for (Change change : pendingChanges) {
+                    next = next.with(change);
+                }
+                view = next;
+                pendingChanges = null;
+            }
+
+            LOGGER.info("Color index restored with {} products from its snapshot of {} in {} ms", next.size(),
+                    file.getCatalogVersion(), System.currentTimeMillis() - start);
+            return true;
+        }
+    }
+
+    /**
+     * Rebuilds the index from the database. Searches keep using the previous view until the new one is ready.
+     * The changes applied while the products are loaded are applied again on top of the new snapshot,
+     * as the load may or may not have seen them.
+     */
+    public void rebuild() {
+        synchronized (rebuildLock) {
+            synchronized (changeLock) {
+                // cleared before loading, so an invalidation during the rebuild triggers another one
+                stale = false;
+                pendingChanges = new ArrayList<>();
+            }
+
+            long start = System.currentTimeMillis();
+            Instant catalogVersion = Instant.now();
+            List<ProductColorView> colors = productRepository.findByDominantRgbIsNotNullOrderByIdAsc();
+            Snapshot snapshot = Snapshot.of(colors, colorProximity, cellSize);
+
+            synchronized (changeLock) {
+                View next = new View(snapshot);
+                for (Change change : pendingChanges) {
+                    next = next.with(change);
+                }
+                view = next;
+                pendingChanges = null;
+            }
+
+            LOGGER.info("Color index built with {} products in {} ms", colors.size(),
+                    System.currentTimeMillis() - start);
+
+            if (!snapshotFile.isEmpty()) {
+                compactionExecutor.execute(() -> writeSnapshot(snapshot, catalogVersion));
+            }
+        }
+    }
+
+    private void writeSnapshot(Snapshot snapshot, Instant catalogVersion) {
+        long start = System.currentTimeMillis();
+        try {
+            new ColorIndexFile(catalogVersion, snapshot.ids, snapshot.l, snapshot.a, snapshot.b,
+                    snapshot.genderIds, snapshot.sleeves, snapshot.compositions).write(Paths.get(snapshotFile));
+            LOGGER.info("Color index snapshot written to {} in {} ms", snapshotFile,
+                    System.currentTimeMillis() - start);
+        } catch (IOException e) {
+            LOGGER.error("Color index snapshot could not be written! Error: {}", e.getMessage());
+        }
+    }
+
+    private Change changeOf(String id, Integer dominantRgb, GenderId genderId, String sleeve, String composition) {
+        DeltaEntry entry = dominantRgb == null ? null : new DeltaEntry(id,
+                colorProximity.labOf(dominantRgb), genderId, sleeve, composition);
+        return new Change(id, entry);
+    }
+
+    /**
+     * Publishes a new view with the change, copying only the replaced-entries set and the small delta.
+     * Once the delta reaches color-search.compaction-threshold products, the index is rebuilt in the background.
+     */
+    private void apply(Change change) {
+        boolean compact;
+        synchronized (changeLock) {
+            if (pendingChanges != null) {
+                pendingChanges.add(change);
+            }
+            if (view == null) {
+                return;
+            }
+            view = view.with(change);
+            compact = view.delta.length >= compactionThreshold && pendingChanges == null;
+        }
+
+        if (compact && compacting.compareAndSet(false, true)) {
+            compactionExecutor.execute(() -> {
+                try {
+                    rebuild();
+                } catch (RuntimeException e) {
+                    LOGGER.error("Color index compaction failed! Error: {}", e.getMessage());
+                } finally {
+                    compacting.set(false);
+                }
+            });
+        }
+    }
+
+    private View getView() {
+        if (stale || view == null) {
+            synchronized (rebuildLock) {
+                if (stale || view == null) {
+                    rebuild();
+                }
+            }
+        }
+        return view;
+    }
+
+    /**
+     * The way a color search goes through the index.
+     */
+    public enum SearchEngine {
+        KDTREE, BRUTE, DATABASE
+    }
+
+    /**
+     * Immutable base state of the index, replaced as a whole upon rebuilding.
+     */
+    private static final class Snapshot {
+
+        private final String[] ids;
+
+        private final float[] l;
+
+        private final float[] a;
+
+        private final float[] b;
+
+        private final GenderId[] genderIds;
+
+        private final String[] sleeves;
+
+        private final String[] compositions;
+
+        private final Map<String, Integer> positions;
+
+        private final ColorKdTree tree;
+
+        private final ColorGrid grid;
+
+        private final List<Partition> partitions = new ArrayList<>();
+
+        private Snapshot(String[] ids, float[] l, float[] a, float[] b, GenderId[] genderIds, String[] sleeves,
+                         String[] compositions, float cellSize) {
+            int size = ids.length;
+            this.ids = ids;
+            this.l = l;
+            this.a = a;
+            this.b = b;
+            this.genderIds = genderIds;
+            this.sleeves = sleeves;
+            this.compositions = compositions;
+            positions = new HashMap<>(size * 2);
+            Map<List<Object>, List<Integer>> membersByFacets = new HashMap<>();
+
+            for (int i = 0; i < size; i++) {
+                positions.put(ids[i], i);
+                membersByFacets.computeIfAbsent(Arrays.asList(genderIds[i], sleeves[i], compositions[i]),
+                        facets -> new ArrayList<>()).add(i);
+            }
+
+            tree = new ColorKdTree(l, a, b);
+            grid = new ColorGrid(l, a, b, cellSize);
+
+            membersByFacets.forEach((facets, members) -> partitions.add(new Partition((GenderId) facets.get(0),
+                    (String) facets.get(1), (String) facets.get(2),
+                    members.stream().mapToInt(Integer::intValue).toArray(), l, a, b, cellSize)));
+        }
+
+        /**
+         * Builds a snapshot of the products, converting their dominant colors to L*a*b*.
+         */
+        private static Snapshot of(List<ProductColorView> colors, ColorProximity colorProximity, float cellSize) {
+            int size = colors.size();
+            String[] ids = new String[size];
+            float[] l = new float[size];
+            float[] a = new float[size];
+            float[] b = new float[size];
+            GenderId[] genderIds = new GenderId[size];
+            String[] sleeves = new String[size];
+            String[] compositions = new String[size];
+
+            for (int i = 0; i < size; i++) {
+                ProductColorView color = colors.get(i);
+                int lab = colorProximity.labOf(color.getDominantRgb());
+
+                ids[i] = color.getId();
+                l[i] = ColorProximity.lightness(lab);
+                a[i] = ColorProximity.greenRed(lab);
+                b[i] = ColorProximity.blueYellow(lab);
+                genderIds[i] = color.getGenderId();
+                sleeves[i] = color.getSleeve();
+                compositions[i] = color.getComposition();
+            }
+
+            return new Snapshot(ids, l, a, b, genderIds, sleeves, compositions, cellSize);
+        }
+
+        private int size() {
+            return ids.length;
+        }
+
+        private int indexOf(String id) {
+            Integer position = id == null ? null : positions.get(id);
+            return position == null ? -1 : position;
+        }
+
+        private void scan(int from, int to, float refL, float refA, float refB, int excluded,
+                          TopKSelector selector) {
+            for (int i = from; i < to; i++) {
+                if (i != excluded) {
+                    selector.offer(distanceSq(i, refL, refA, refB), i);
+                }
+            }
+        }
+
+        private double distanceSq(int i, float refL, float refA, float refB) {
+            double dl = l[i] - refL;
+            double da = a[i] - refA;
+            double db = b[i] - refB;
+            return dl * dl + da * da + db * db;
+        }
+    }
+
+    /**
+     * Immutable view of the index searched by a query: the base snapshot without its replaced entries,
+     * and the delta of the products written since it was built, which get the indices following the base's.
+     */
+    private static final class View {
+
+        private final Snapshot base;
+
+        // base indices of the products written or deleted since the base was built
+        private final BitSet removed;
+
+        private final int removedCount;
+
+        private final DeltaEntry[] delta;
+
+        private final Map<String, Integer> deltaPositions;
+
+        private View(Snapshot base) {
+            this(base, new BitSet(), 0, new DeltaEntry[0]);
+        }
+
+        private View(Snapshot base, BitSet removed, int removedCount, DeltaEntry[] delta) {
+            this.base = base;
+            this.removed = removed;
+            this.removedCount = removedCount;
+            this.delta = delta;
+            deltaPositions = new HashMap<>(delta.length * 2);
+            for (int i = 0; i < delta.length; i++) {
+                deltaPositions.put(delta[i].id, i);
+            }
+        }
+
+        /**
+         * @return a copy of this view with the change applied
+         */
+        private View with(Change change) {
+            BitSet nextRemoved = removed;
+            int nextRemovedCount = removedCount;
+            int position = base.indexOf(change.id);
+            if (position >= 0 && !removed.get(position)) {
+                nextRemoved = (BitSet) removed.clone();
+                nextRemoved.set(position);
+                nextRemovedCount++;
+            }
+
+            List<DeltaEntry> nextDelta = new ArrayList<>(delta.length + 1);
+            for (DeltaEntry entry : delta) {
+                if (!entry.id.equals(change.id)) {
+                    nextDelta.add(entry);
+                }
+            }
+            if (change.entry != null) {
+                nextDelta.add(change.entry);
+            }
+
+            return new View(base, nextRemoved, nextRemovedCount, nextDelta.toArray(new DeltaEntry[0]));
+        }
+
+        /**
+         * @return the number of products in the view
+         */
+        private int size() {
+            return base.size() - removedCount + delta.length;
+        }
+
+        private int indexOf(String id) {
+            if (id == null) {
+                return -1;
+            }
+            Integer deltaPosition = deltaPositions.get(id);
+            if (deltaPosition != null) {
+                return base.size() + deltaPosition;
+            }
+            int position = base.indexOf(id);
+            return position >= 0 && !removed.get(position) ? position : -1;
+        }
+
+        private String idAt(int index) {
+            return index < base.size() ? base.ids[index] : delta[index - base.size()].id;
+        }
+
+        private int labAt(int index) {
+            if (index >= base.size()) {
+                return delta[index - base.size()].lab;
+            }
+            return ColorProximity.packLab((int) base.l[index], (int) base.a[index], (int) base.b[index]);
+        }
+
+        private TopKSelector newSelector(int k) {
+            return new TopKSelector(k, removedCount == 0 ? null : removed);
+        }
+
+        /**
+         * Offers the delta products passing the filters of the options (all of them if null) to the selector.
+         */
+        private void scanDelta(float[] ref, int excluded, ColorSearchOptions options, TopKSelector selector) {
+            for (int i = 0; i < delta.length; i++) {
+                int index = base.size() + i;
+                DeltaEntry entry = delta[i];
+                if (index != excluded && (options == null
+                        || options.matches(entry.genderId, entry.sleeve, entry.composition))) {
+                    selector.offer(distanceSq(index, ref), index);
+                }
+            }
+        }
+
+        private void forEachDeltaWithin(float[] ref, double radiusSq, int excluded, IntConsumer visitor) {
+            for (int i = 0; i < delta.length; i++) {
+                int index = base.size() + i;
+                if (index != excluded && distanceSq(index, ref) <= radiusSq) {
+                    visitor.accept(index);
+                }
+            }
+        }
+
+        private double distanceSq(int index, float[] ref) {
+            DeltaEntry entry = delta[index - base.size()];
+            double dl = ColorProximity.lightness(entry.lab) - ref[0];
+            double da = ColorProximity.greenRed(entry.lab) - ref[1];
+            double db = ColorProximity.blueYellow(entry.lab) - ref[2];
+            return dl * dl + da * da + db * db;
+        }
+
+        private List<ColorMatch> toMatches(TopKSelector selector) {
+            int count = selector.sort();
+            List<ColorMatch> matches = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                matches.add(new ColorMatch(idAt(selector.indexAt(i)), Math.sqrt(selector.distanceAt(i))));
+            }
+            return matches;
+        }
+    }
+
+    /**
+     * A product written since the base snapshot was built.
+     */
+    private static final class DeltaEntry {
+
+        private final String id;
+
+        private final int lab;
+
+        private final GenderId genderId;
+
+        private final String sleeve;
+
+        private final String composition;
+
+        private DeltaEntry(String id, int lab, GenderId genderId, String sleeve, String composition) {
+            this.id = id;
+            this.lab = lab;
+            this.genderId = genderId;
+            this.sleeve = sleeve;
+            this.composition = composition;
+        }
+    }
+
+    /**
+     * A write to apply to the index: the new entry of the product, or null if it has been deleted or has no color.
+     */
+    private static final class Change {
+
+        private final String id;
+
+        private final DeltaEntry entry;
+
+        private Change(String id, DeltaEntry entry) {
+            this.id = id;
+            this.entry = entry;
+        }
+    }
+
+    /**
+     * The products of the index sharing the same facet values, with their own tree and grid.
+     * The members keep their indices in the index.
+     */
+    private static final class Partition {
+
+        private final GenderId genderId;
+
+        private final String sleeve;
+
+        private final String composition;
+
+        private final int[] members;
+
+        private final ColorKdTree tree;
+
+        private final ColorGrid grid;
+
+        private Partition(GenderId genderId, String sleeve, String composition, int[] members,
+                          float[] l, float[] a, float[] b, float cellSize) {
+            this.genderId = genderId;
+            this.sleeve = sleeve;
+            this.composition = composition;
+            this.members = members;
+            tree = new ColorKdTree(l, a, b, members);
+            grid = new ColorGrid(l, a, b, members, cellSize);
+        }
+    }
+
+    /**
+     * Scans a range of the index, splitting it in halves until it is small enough,
+     * and merging the top-K of the halves.
+     */
+    private static final class ScanTask extends RecursiveTask<TopKSelector> {
+
+        private final View view;
+
+        private final int from;
+
+        private final int to;
+
+        private final int rangeSize;
+
+        private final float[] ref;
+
+        private final int excluded;
+
+        private final int k;
+
+        private ScanTask(View view, int from, int to, int rangeSize, float[] ref, int excluded, int k) {
+            this.view = view;
+            this.from = from;
+            this.to = to;
+            this.rangeSize = rangeSize;
+            this.ref = ref;
+            this.excluded = excluded;
+            this.k = k;
+        }
+
+        @Override
+        protected TopKSelector compute() {
+            if (to - from <= rangeSize) {
+                TopKSelector selector = view.newSelector(k);
+                view.base.scan(from, to, ref[0], ref[1], ref[2], excluded, selector);
+                return selector;
+            }
+
+            int mid = (from + to) >>> 1;
+            ScanTask left = new ScanTask(view, from, mid, rangeSize, ref, excluded, k);
+            ScanTask right = new ScanTask(view, mid, to, rangeSize, ref, excluded, k);
+            left.fork();
+
+            TopKSelector selector = right.compute();
+            selector.offerAll(left.join());
+            return selector;
+        }
+    }
+}
@@ -0,0 +1,238 @@
+package com.rmeunier.colormatchapi.service;
+
+import com.rmeunier.colormatchapi.model.GenderId;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Binary snapshot of the color index, so it can be restored on start-up without reading the whole product table
+ * and converting every dominant color to L*a*b* again.
+ *
+ * The file holds the catalog version the snapshot was taken at, then the entries in columns:
+ * the L, a and b values, the gender ordinals, the indices of the sleeves and compositions in a table of the
+ * distinct facet values, and the product ids. Reading maps the file in memory and copies every column in bulk,
+ * so it mostly costs the disk read. The file is written next to its final path then moved over it,
+ * so a reader never sees a partially written snapshot.
+ */
+public class ColorIndexFile {
+
+    private static final int MAGIC = 0x434F4C58;
+
+    // to bump whenever the layout or the L*a*b conversion changes, so older files are not read
+    private static final int FORMAT_VERSION = 1;
+
+    private final Instant catalogVersion;
+
+    private final String[] ids;
+
+    private final float[] l;
+
+    private final float[] a;
+
+    private final float[] b;
+
+    private final GenderId[] genderIds;
+
+    private final String[] sleeves;
+
+    private final String[] compositions;
+
+    /**
+     * @param catalogVersion the time of the catalog the entries were read at
+     * @param ids            the product ids
+     * @param l              the L values of the products
+     * @param a              the a values of the products
+     * @param b              the b values of the products
+     * @param genderIds      the genders of the products, can contain nulls
+     * @param sleeves        the sleeves of the products, can contain nulls
+     * @param compositions   the compositions of the products, can contain nulls
+     */
+    public ColorIndexFile(Instant catalogVersion, String[] ids, float[] l, float[] a, float[] b,
+                          GenderId[] genderIds, String[] sleeves, String[] compositions) {
+        this.catalogVersion = catalogVersion;
+        this.ids = ids;
+        this.l = l;
+        this.a = a;
+        this.b = b;
+        this.genderIds = genderIds;
+        this.sleeves = sleeves;
+        this.compositions = compositions;
+    }
+
+    /**
+     * Writes the snapshot to the given path, replacing any previous file.
+     *
+     * @param path the path of the file
+     * @throws IOException if the file cannot be written
+     */
+    public void write(Path path) throws IOException {
+        Path parent = path.toAbsolutePath().getParent();
+        Files.createDirectories(parent);
+        Path temporary = Files.createTempFile(parent, path.getFileName().toString(), ".tmp");
+
+        Map<String, Integer> facets = new LinkedHashMap<>();
+        for (int i = 0; i < ids.length; i++) {
+            facetIndex(facets, sleeves[i]);
+            facetIndex(facets, compositions[i]);
+        }
+
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeLong(catalogVersion.toEpochMilli());
+            out.writeInt(ids.length);
+
+            for (float[] column : new float[][] {l, a, b}) {
+                for (float value : column) {
+                    out.writeFloat(value);
+                }
+            }
+            for (GenderId genderId : genderIds) {
+                out.writeByte(genderId == null ? -1 : genderId.ordinal());
+            }
+
+            out.writeInt(facets.size());
+            for (String facet : facets.keySet()) {
+                writeString(out, facet);
+            }
+            for (String[] column : new String[][] {sleeves, compositions}) {
+                for (String facet : column) {
+                    out.writeInt(facetIndex(facets, facet));
+                }
+            }
+
+            for (String id : ids) {
+                writeString(out, id);
+            }
+        } catch (IOException e) {
+            Files.deleteIfExists(temporary);
+            throw e;
+        }
+
+        Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Reads a snapshot written by {@link #write(Path)}. The file is mapped in memory, and has to be under 2 GB.
+     *
+     * @param path the path of the file
+     * @return the snapshot
+     * @throws IOException if the file cannot be read, or is not a snapshot of this format version
+     */
+    public static ColorIndexFile read(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+            if (buffer.getInt() != MAGIC || buffer.getInt() != FORMAT_VERSION) {
+                throw new IOException("Error: " + path + " is not a color index snapshot of the current format!");
+            }
+            Instant catalogVersion = Instant.ofEpochMilli(buffer.getLong());
+            int size = buffer.getInt();
+
+            float[] l = readFloats(buffer, size);
+            float[] a = readFloats(buffer, size);
+            float[] b = readFloats(buffer, size);
+
+            GenderId[] genderIds = new GenderId[size];
+            GenderId[] genderValues = GenderId.values();
+            for (int i = 0; i < size; i++) {
+                byte ordinal = buffer.get();
+                genderIds[i] = ordinal < 0 ? null : genderValues[ordinal];
+            }
+
+            String[] facets = new String[buffer.getInt()];
+            for (int i = 0; i < facets.length; i++) {
+                facets[i] = readString(buffer);
+            }
+            String[] sleeves = readFacets(buffer, size, facets);
+            String[] compositions = readFacets(buffer, size, facets);
+
+            String[] ids = new String[size];
+            for (int i = 0; i < size; i++) {
+                ids[i] = readString(buffer);
+            }
+
+            return new ColorIndexFile(catalogVersion, ids, l, a, b, genderIds, sleeves, compositions);
+        } catch (RuntimeException e) {
+            // truncated or corrupted file
+            throw new IOException("Error: " + path + " is not a valid color index snapshot!", e);
+        }
+    }
+
+    public Instant getCatalogVersion() {
+        return catalogVersion;
+    }
+
+    public String[] getIds() {
+        return ids;
+    }
+
+    public float[] getL() {
+        return l;
+    }
+
+    public float[] getA() {
+        return a;
+    }
+
+    public float[] getB() {
+        return b;
+    }
+
+    public GenderId[] getGenderIds() {
+        return genderIds;
+    }
+
+    public String[] getSleeves() {
+        return sleeves;
+    }
+
+    public String[] getCompositions() {
+        return compositions;
+    }
+
+    private static int facetIndex(Map<String, Integer> facets, String facet) {
+        return facet == null ? -1 : facets.computeIfAbsent(facet, value -> facets.size());
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static float[] readFloats(ByteBuffer buffer, int size) {
+        float[] values = new float[size];
+        buffer.asFloatBuffer().get(values);
+        buffer.position(buffer.position() + size * Float.BYTES);
+        return values;
+    }
+
+    private static String[] readFacets(ByteBuffer buffer, int size, String[] facets) {
+        String[] values = new String[size];
+        for (int i = 0; i < size; i++) {
+            int index = buffer.getInt();
+            values[i] = index < 0 ? null : facets[index];
+        }
+        return values;
+    }
+}
@@ -0,0 +1,248 @@
+package com.rmeunier.colormatchapi.service;
+
+import java.util.function.IntConsumer;
+
+/**
+ * Static k-d tree over 3-D L*a*b* points, answering exact nearest neighbour and radius queries.
+ *
+ * The tree is implicit: the points are reordered so that every range [lo, hi) is a node,
+ * whose median element at (lo + hi) / 2 splits the range on the axis of widest spread.
+ * Coordinates are copied in tree order, so the small leaf ranges are scanned sequentially.
+ */
+public class ColorKdTree {
+
+    private static final int LEAF_SIZE = 8;
+
+    // point indices, in tree order
+    private final int[] order;
+
+    // coordinates, in tree order
+    private final float[][] coords;
+
+    // split axis of each node, stored at the node's median position
+    private final byte[] axes;
+
+    /**
+     * Builds the tree over the given points. The arrays are not modified.
+     *
+     * @param l the L values of the points
+     * @param a the a values of the points
+     * @param b the b values of the points
+     */
+    public ColorKdTree(float[] l, float[] a, float[] b) {
+        this(l, a, b, identity(l.length));
+    }
+
+    /**
+     * Builds the tree over a subset of the given points, e.g. a partition of the catalog.
+     * The points keep their indices in the arrays. The arrays are not modified.
+     *
+     * @param l       the L values of the points
+     * @param a       the a values of the points
+     * @param b       the b values of the points
+     * @param indices the indices of the points to build the tree over
+     */
+    public ColorKdTree(float[] l, float[] a, float[] b, int[] indices) {
+        int size = indices.length;
+        order = indices.clone();
+        axes = new byte[size];
+        coords = new float[][] {l, a, b};
+
+        build(0, size);
+
+        float[][] sorted = new float[3][size];
+        for (int i = 0; i < size; i++) {
+            for (int axis = 0; axis < 3; axis++) {
+                sorted[axis][i] = coords[axis][order[i]];
+            }
+        }
+        System.arraycopy(sorted, 0, coords, 0, 3);
+    }
+
+    /**
+     * Finds the nearest points to the reference point, feeding them into the selector.
+     * Only the branches that can still hold a point closer than the selector's worst distance are visited.
+     *
+     * @param refL     the reference L value
+     * @param refA     the reference a value
+     * @param refB     the reference b value
+     * @param excluded the index of a point to skip, or -1
+     * @param selector the selector collecting the (squared distance, point index) pairs
+     */
+    public void nearest(float refL, float refA, float refB, int excluded, TopKSelector selector) {
+        if (order.length > 0) {
+            nearest(0, order.length, new float[] {refL, refA, refB}, excluded, selector);
+        }
+    }
+
+    private void nearest(int lo, int hi, float[] ref, int excluded, TopKSelector selector) {
+        if (hi - lo <= LEAF_SIZE) {
+            for (int i = lo; i < hi; i++) {
+                offer(i, ref, excluded, selector);
+            }
+            return;
+        }
+
+        int mid = (lo + hi) >>> 1;
+        offer(mid, ref, excluded, selector);
+
+        int axis = axes[mid];
+        double diff = ref[axis] - coords[axis][mid];
+
+        if (diff < 0) {
+            nearest(lo, mid, ref, excluded, selector);
+            // points at an equal distance still matter, as they may win the tie on their index
+            if (diff * diff <= selector.worstDistance()) {
+                nearest(mid + 1, hi, ref, excluded, selector);
+            }
+        } else {
+            nearest(mid + 1, hi, ref, excluded, selector);
+            if (diff * diff <= selector.worstDistance()) {
+                nearest(lo, mid, ref, excluded, selector);
+            }
+        }
+    }
+
+    /**
+     * Finds every point within a distance of the reference point.
+     * Only the branches whose split plane is within the radius are visited.
+     *
+     * @param refL     the reference L value
+     * @param refA     the reference a value
+     * @param refB     the reference b value
+     * @param radiusSq the squared radius
+     * @param excluded the index of a point to skip, or -1
+     * @param visitor  receives the index of every point within the radius, in no particular order
+     */
+    public void withinRadius(float refL, float refA, float refB, double radiusSq, int excluded,
+                             IntConsumer visitor) {
+        if (order.length > 0) {
+            withinRadius(0, order.length, new float[] {refL, refA, refB}, radiusSq, excluded, visitor);
+        }
+    }
+
+    private void withinRadius(int lo, int hi, float[] ref, double radiusSq, int excluded, IntConsumer visitor) {
+        if (hi - lo <= LEAF_SIZE) {
+            for (int i = lo; i < hi; i++) {
+                visitIfWithin(i, ref, radiusSq, excluded, visitor);
+            }
+            return;
+        }
+
+        int mid = (lo + hi) >>> 1;
+        visitIfWithin(mid, ref, radiusSq, excluded, visitor);
+
+        int axis = axes[mid];
+        double diff = ref[axis] - coords[axis][mid];
+
+        if (diff <= 0 || diff * diff <= radiusSq) {
+            withinRadius(lo, mid, ref, radiusSq, excluded, visitor);
+        }
+        if (diff >= 0 || diff * diff <= radiusSq) {
+            withinRadius(mid + 1, hi, ref, radiusSq, excluded, visitor);
+        }
+    }
+
+    private void visitIfWithin(int position, float[] ref, double radiusSq, int excluded, IntConsumer visitor) {
+        int index = order[position];
+        if (index != excluded && distanceSq(position, ref) <= radiusSq) {
+            visitor.accept(index);
+        }
+    }
+
+    private double distanceSq(int position, float[] ref) {
+        double dl = coords[0][position] - ref[0];
+        double da = coords[1][position] - ref[1];
+        double db = coords[2][position] - ref[2];
+        return dl * dl + da * da + db * db;
+    }
+
+    private void offer(int position, float[] ref, int excluded, TopKSelector selector) {
+        int index = order[position];
+        if (index != excluded) {
+            selector.offer(distanceSq(position, ref), index);
+        }
+    }
+
+    private static int[] identity(int size) {
+        int[] indices = new int[size];
+        for (int i = 0; i < size; i++) {
+            indices[i] = i;
+        }
+        return indices;
+    }
+
+    private void build(int lo, int hi) {
+        if (hi - lo <= LEAF_SIZE) {
+            return;
+        }
+
+        int axis = widestAxis(lo, hi);
+        int mid = (lo + hi) >>> 1;
+        select(lo, hi - 1, mid, coords[axis]);
+        axes[mid] = (byte) axis;
+
+        build(lo, mid);
+        build(mid + 1, hi);
+    }
+
+    private int widestAxis(int lo, int hi) {
+        int widest = 0;
+        float widestSpread = -1;
+
+        for (int axis = 0; axis < 3; axis++) {
+            float min = Float.POSITIVE_INFINITY;
+            float max = Float.NEGATIVE_INFINITY;
+            for (int i = lo; i < hi; i++) {
+                float value = coords[axis][order[i]];
+                min = Math.min(min, value);
+                max = Math.max(max, value);
+            }
+            if (max - min > widestSpread) {
+                widestSpread = max - min;
+                widest = axis;
+            }
+        }
+        return widest;
+    }
+
+    /**
+     * Quickselect on the order array: afterwards the element at position k has its final sorted position
+     * on the given axis, with no greater element before it and no smaller element after it.
+     * Uses a three-way partition, as colors are often repeated across a catalog.
+     */
+    private void select(int left, int right, int k, float[] values) {
+        while (right > left) {
+            float pivot = values[order[(left + right) >>> 1]];
+
+            // [left, lt) < pivot, [lt, i) == pivot, (gt, right] > pivot
+            int lt = left;
+            int gt = right;
+            int i = left;
+            while (i <= gt) {
+                float value = values[order[i]];
+                if (value < pivot) {
+                    swap(lt++, i++);
+                } else if (value > pivot) {
+                    swap(i, gt--);
+                } else {
+                    i++;
+                }
+            }
+
+            if (k < lt) {
+                right = lt - 1;
+            } else if (k > gt) {
+                left = gt + 1;
+            } else {
+                return;
+            }
+        }
+    }
+
+    private void swap(int i, int j) {
+        int index = order[i];
+        order[i] = order[j];
+        order[j] = index;
+    }
+}
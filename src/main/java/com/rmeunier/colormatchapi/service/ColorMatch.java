@@ -0,0 +1,32 @@
+package com.rmeunier.colormatchapi.service;
+
+/**
+ * A single result of a color search: the id of the matching product and its color distance to the reference.
+ */
+public class ColorMatch {
+
+    private final String id;
+
+    private final double distance;
+
+    public ColorMatch(String id, double distance) {
+        this.id = id;
+        this.distance = distance;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public double getDistance() {
+        return distance;
+    }
+
+    @Override
+    public String toString() {
+        return "ColorMatch{" +
+                "id='" + id + '\'' +
+                ", distance=" + distance +
+                '}';
+    }
+}
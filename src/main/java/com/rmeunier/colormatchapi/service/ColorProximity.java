@@ -1,15 +1,42 @@
 package com.rmeunier.colormatchapi.service;
 
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
 import org.springframework.stereotype.Component;
 
-import java.util.Arrays;
-
+/**
+ * Color conversion and distance kernel.
+ *
+ * Colors are handled as packed ints to avoid allocations on the hot path:
+ * an RGB color is packed as 0xRRGGBB, and an L*a*b* color is packed with L (scaled to 0..255) in the third byte,
+ * a in the second byte and b in the lowest byte, both as signed bytes.
+ * This is lossless, as the L*a*b* values are rounded to integers, and for sRGB colors a and b stay within -128..127.
+ */
 @Component
 public class ColorProximity {
 
-    private static final Logger LOGGER = LoggerFactory.getLogger(ColorProximity.class);
+    private static final float EPS = 216.f / 24389.f;
+    private static final float K = 24389.f / 27.f;
+
+    // reference white D50
+    private static final float XR = 0.964221f;
+    private static final float YR = 1.0f;
+    private static final float ZR = 0.825211f;
+
+    /**
+     * Linearized sRGB value (0..1) of every 8-bit channel value.
+     */
+    private static final float[] LINEAR = new float[256];
+
+    static {
+        for (int i = 0; i < LINEAR.length; i++) {
+            float c = i / 255.f;
+
+            // assuming sRGB (D65)
+            if (c <= 0.04045)
+                LINEAR[i] = c / 12;
+            else
+                LINEAR[i] = (float) Math.pow((c + 0.055) / 1.055, 2.4);
+        }
+    }
 
     /**
      * Calculates color proximity between two RGB vectors.
@@ -19,14 +46,32 @@ public class ColorProximity {
      * @return the calculated distance value
      */
     public double proximity(int[] rgbVector1, int[] rgbVector2) {
-        LOGGER.debug("RGB vector 1: {}", Arrays.toString(rgbVector1));
-        LOGGER.debug("RGB vector 2: {}", Arrays.toString(rgbVector2));
+        return Math.sqrt(distanceSq(packRgb(rgbVector1), packRgb(rgbVector2)));
+    }
 
-        float[] lab1 = rgb2lab(rgbVector1);
-        float[] lab2 = rgb2lab(rgbVector2);
+    /**
+     * Calculates the squared CIE76 distance between two packed RGB colors.
+     *
+     * @param packedRgb1 the first color as 0xRRGGBB
+     * @param packedRgb2 the second color as 0xRRGGBB
+     * @return the squared distance of the L*a*b* values
+     */
+    public int distanceSq(int packedRgb1, int packedRgb2) {
+        return labDistanceSq(labOf(packedRgb1), labOf(packedRgb2));
+    }
 
-        return Math.sqrt(Math.pow(lab1[0] - lab2[0], 2)
-                + Math.pow(lab1[1] - lab2[1], 2) + Math.pow(lab1[2] - lab2[2], 2));
+    /**
+     * Calculates the squared CIE76 distance between two packed L*a*b* colors.
+     *
+     * @param packedLab1 the first packed L*a*b* color
+     * @param packedLab2 the second packed L*a*b* color
+     * @return the squared distance
+     */
+    public int labDistanceSq(int packedLab1, int packedLab2) {
+        int dl = lightness(packedLab1) - lightness(packedLab2);
+        int da = greenRed(packedLab1) - greenRed(packedLab2);
+        int db = blueYellow(packedLab1) - blueYellow(packedLab2);
+        return dl * dl + da * da + db * db;
     }
 
     /**
@@ -36,79 +81,131 @@ public class ColorProximity {
      * @return the L*a*b values returned in a float array.
      */
     public float[] rgb2lab(int[] rgbValues) {
-        if (rgbValues.length < 3) {
-            throw new IllegalArgumentException("Error: wrong RGB vector provided!");
-        }
-
-        int R = rgbValues[0];
-        int G = rgbValues[1];
-        int B = rgbValues[2];
-
-        float r, g, b, X, Y, Z, fx, fy, fz, xr, yr, zr;
-        float Ls, as, bs;
-        float eps = 216.f / 24389.f;
-        float k = 24389.f / 27.f;
+        int lab = labOf(packRgb(rgbValues));
+        return new float[] {lightness(lab), greenRed(lab), blueYellow(lab)};
+    }
 
-        float Xr = 0.964221f;  // reference white D50
-        float Yr = 1.0f;
-        float Zr = 0.825211f;
+    /**
+     * Converting a packed RGB color to a packed CIE L*a*b color, without any allocation.
+     *
+     * @param packedRgb the color as 0xRRGGBB
+     * @return the packed L*a*b color
+     */
+    public int labOf(int packedRgb) {
+        float r = LINEAR[(packedRgb >> 16) & 0xFF];
+        float g = LINEAR[(packedRgb >> 8) & 0xFF];
+        float b = LINEAR[packedRgb & 0xFF];
 
         // RGB to XYZ
-        r = R / 255.f; //R 0..1
-        g = G / 255.f; //G 0..1
-        b = B / 255.f; //B 0..1
+        float X = 0.436052025f * r + 0.385081593f * g + 0.143087414f * b;
+        float Y = 0.222491598f * r + 0.71688606f * g + 0.060621486f * b;
+        float Z = 0.013929122f * r + 0.097097002f * g + 0.71418547f * b;
 
-        // assuming sRGB (D65)
-        if (r <= 0.04045)
-            r = r / 12;
-        else
-            r = (float) Math.pow((r + 0.055) / 1.055, 2.4);
-
-        if (g <= 0.04045)
-            g = g / 12;
-        else
-            g = (float) Math.pow((g + 0.055) / 1.055, 2.4);
+        // XYZ to Lab
+        float fx = f(X / XR);
+        float fy = f(Y / YR);
+        float fz = f(Z / ZR);
 
-        if (b <= 0.04045)
-            b = b / 12;
-        else
-            b = (float) Math.pow((b + 0.055) / 1.055, 2.4);
+        float Ls = (116 * fy) - 16;
+        float as = 500 * (fx - fy);
+        float bs = 200 * (fy - fz);
 
+        return packLab((int) (2.55 * Ls + .5), (int) (as + .5), (int) (bs + .5));
+    }
 
-        X = 0.436052025f * r + 0.385081593f * g + 0.143087414f * b;
-        Y = 0.222491598f * r + 0.71688606f * g + 0.060621486f * b;
-        Z = 0.013929122f * r + 0.097097002f * g + 0.71418547f * b;
+    /**
+     * Packs an RGB vector into a single int as 0xRRGGBB.
+     *
+     * @param rgbValues the RGB vector, each channel in 0..255
+     * @return the packed RGB color
+     */
+    public static int packRgb(int[] rgbValues) {
+        if (rgbValues.length < 3) {
+            throw new IllegalArgumentException("Error: wrong RGB vector provided!");
+        }
+        return (rgbValues[0] & 0xFF) << 16 | (rgbValues[1] & 0xFF) << 8 | (rgbValues[2] & 0xFF);
+    }
 
-        // XYZ to Lab
-        xr = X / Xr;
-        yr = Y / Yr;
-        zr = Z / Zr;
+    /**
+     * Unpacks a packed RGB color into an RGB vector.
+     *
+     * @param packedRgb the color as 0xRRGGBB
+     * @return the RGB vector
+     */
+    public static int[] unpackRgb(int packedRgb) {
+        return new int[] {(packedRgb >> 16) & 0xFF, (packedRgb >> 8) & 0xFF, packedRgb & 0xFF};
+    }
 
-        if (xr > eps)
-            fx = (float) Math.pow(xr, 1 / 3.);
-        else
-            fx = (float) ((k * xr + 16.) / 116.);
+    /**
+     * Parses a hexadecimal RGB color, e.g. "ff8800" or "#FF8800".
+     *
+     * @param hex the hexadecimal color
+     * @return the packed RGB color
+     * @throws IllegalArgumentException if the value is not a 6-digit hexadecimal color
+     */
+    public static int parseRgb(String hex) {
+        String digits = hex.startsWith("#") ? hex.substring(1) : hex;
+        if (!digits.matches("[0-9a-fA-F]{6}")) {
+            throw new IllegalArgumentException("Error: wrong RGB color provided: " + hex);
+        }
+        return Integer.parseInt(digits, 16);
+    }
 
-        if (yr > eps)
-            fy = (float) Math.pow(yr, 1 / 3.);
-        else
-            fy = (float) ((k * yr + 16.) / 116.);
+    /**
+     * Packs a CIE L*a*b color given with L in 0..100, rounded the same way as the conversion from RGB.
+     *
+     * @param lightness  the L value, in 0..100
+     * @param greenRed   the a value
+     * @param blueYellow the b value
+     * @return the packed L*a*b color
+     * @throws IllegalArgumentException if the values are out of the packable range
+     */
+    public static int packCieLab(float lightness, float greenRed, float blueYellow) {
+        int l = (int) (2.55 * lightness + .5);
+        int a = (int) (greenRed + .5);
+        int b = (int) (blueYellow + .5);
+        if (l < 0 || l > 255 || a < -128 || a > 127 || b < -128 || b > 127) {
+            throw new IllegalArgumentException("Error: L*a*b color out of range!");
+        }
+        return packLab(l, a, b);
+    }
 
-        if (zr > eps)
-            fz = (float) Math.pow(zr, 1 / 3.);
-        else
-            fz = (float) ((k * zr + 16.) / 116);
+    public static int packLab(int lightness, int greenRed, int blueYellow) {
+        return (lightness & 0xFF) << 16 | (greenRed & 0xFF) << 8 | (blueYellow & 0xFF);
+    }
 
-        Ls = (116 * fy) - 16;
-        as = 500 * (fx - fy);
-        bs = 200 * (fy - fz);
+    /**
+     * @param packedLab the packed L*a*b color
+     * @return the L value, scaled to 0..255
+     */
+    public static int lightness(int packedLab) {
+        return (packedLab >> 16) & 0xFF;
+    }
 
-        float[] lab = new float[3];
+    /**
+     * @param packedLab the packed L*a*b color
+     * @return the a value
+     */
+    public static int greenRed(int packedLab) {
+        return (byte) (packedLab >> 8);
+    }
 
-        lab[0] = (int) (2.55 * Ls + .5);
-        lab[1] = (int) (as + .5);
-        lab[2] = (int) (bs + .5);
+    /**
+     * @param packedLab the packed L*a*b color
+     * @return the b value
+     */
+    public static int blueYellow(int packedLab) {
+        return (byte) packedLab;
+    }
 
-        return lab;
+    /**
+     * The CIE L*a*b nonlinearity. Math.cbrt gives the same rounded L*a*b values
+     * as Math.pow(t, 1 / 3.) for all 2^24 RGB colors, at a fraction of the cost.
+     */
+    private static float f(float t) {
+        if (t > EPS)
+            return (float) Math.cbrt(t);
+        else
+            return (float) ((K * t + 16.) / 116.);
     }
 }
@@ -0,0 +1,152 @@
+package com.rmeunier.colormatchapi.service;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Bounded LRU cache of color search results, so that popular references are not ranked again on every call.
+ * Only the ids of the resulting products are kept, so the products themselves are always loaded fresh.
+ *
+ * The cache is limited both in entries and in (estimated) bytes, and is versioned: whenever a product write
+ * commits (see ProductColorIndexListener), the version is bumped and every entry is dropped. A result computed
+ * against an older version is not stored, so a search running during a write cannot put an outdated result back.
+ */
+@Component
+public class ColorSearchCache {
+
+    // rough heap cost of a map entry, its key and value objects, and of a list slot with its String
+    private static final long ENTRY_OVERHEAD = 96;
+    private static final long ID_OVERHEAD = 48;
+
+    @Value("${color-search.cache.max-entries:10000}")
+    private int maxEntries;
+
+    @Value("${color-search.cache.max-bytes:16777216}")
+    private long maxBytes;
+
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    private long version;
+
+    private long bytes;
+
+    private long hits;
+
+    private long misses;
+
+    private long evictions;
+
+    private long invalidations;
+
+    /**
+     * Builds the key of a search.
+     *
+     * @param excludedId the id of the reference product, can be null
+     * @param lab        the reference packed L*a*b color
+     * @param n          the number of results
+     * @param options    the search options
+     * @return the cache key
+     */
+    public static String key(String excludedId, int lab, int n, ColorSearchOptions options) {
+        return excludedId + "|" + Integer.toHexString(lab) + "|" + n + "|" + options.getMode() + "|"
+                + options.getProbe() + "|" + options.getMetric() + "|" + options.getGenderId() + "|"
+                + options.getSleeve() + "|" + options.getComposition();
+    }
+
+    /**
+     * @return the current version, to pass to put along with the result computed after reading it
+     */
+    public synchronized long version() {
+        return version;
+    }
+
+    /**
+     * Looks up the result of a search, counting the hit or miss.
+     *
+     * @param key the cache key
+     * @return the ids of the resulting products, closest first, or null if the search is not cached
+     */
+    public synchronized List<String> get(String key) {
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return entry.ids;
+    }
+
+    /**
+     * Stores the result of a search, evicting the least recently used entries beyond the limits.
+     *
+     * @param key     the cache key
+     * @param ids     the ids of the resulting products, closest first
+     * @param version the version read before computing the result
+     */
+    public synchronized void put(String key, List<String> ids, long version) {
+        if (version != this.version || maxEntries <= 0) {
+            return;
+        }
+
+        Entry entry = new Entry(ids, estimateBytes(key, ids));
+        if (entry.bytes > maxBytes) {
+            return;
+        }
+
+        Entry previous = entries.put(key, entry);
+        if (previous != null) {
+            bytes -= previous.bytes;
+        }
+        bytes += entry.bytes;
+
+        Iterator<Entry> eldest = entries.values().iterator();
+        while (entries.size() > maxEntries || bytes > maxBytes) {
+            bytes -= eldest.next().bytes;
+            eldest.remove();
+            evictions++;
+        }
+    }
+
+    /**
+     * Drops every entry and bumps the version. Should be called once a product write or delete is committed,
+     * after the color index is updated.
+     */
+    public synchronized void invalidate() {
+        version++;
+        invalidations++;
+        entries.clear();
+        bytes = 0;
+    }
+
+    /**
+     * @return the counters of the cache, to size it
+     */
+    public synchronized ColorSearchCacheStats stats() {
+        return new ColorSearchCacheStats(entries.size(), bytes, hits, misses, evictions, invalidations);
+    }
+
+    private static long estimateBytes(String key, List<String> ids) {
+        long size = ENTRY_OVERHEAD + 2L * key.length();
+        for (String id : ids) {
+            size += ID_OVERHEAD + 2L * id.length();
+        }
+        return size;
+    }
+
+    private static final class Entry {
+
+        private final List<String> ids;
+
+        private final long bytes;
+
+        private Entry(List<String> ids, long bytes) {
+            this.ids = ids;
+            this.bytes = bytes;
+        }
+    }
+}
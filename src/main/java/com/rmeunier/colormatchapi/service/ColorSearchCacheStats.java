@@ -0,0 +1,75 @@
+package com.rmeunier.colormatchapi.service;
+
+/**
+ * Counters of the color search cache at a point in time.
+ */
+public class ColorSearchCacheStats {
+
+    private final int entries;
+
+    private final long bytes;
+
+    private final long hits;
+
+    private final long misses;
+
+    private final long evictions;
+
+    private final long invalidations;
+
+    public ColorSearchCacheStats(int entries, long bytes, long hits, long misses, long evictions, long invalidations) {
+        this.entries = entries;
+        this.bytes = bytes;
+        this.hits = hits;
+        this.misses = misses;
+        this.evictions = evictions;
+        this.invalidations = invalidations;
+    }
+
+    public int getEntries() {
+        return entries;
+    }
+
+    /**
+     * @return the estimated heap size of the entries
+     */
+    public long getBytes() {
+        return bytes;
+    }
+
+    public long getHits() {
+        return hits;
+    }
+
+    public long getMisses() {
+        return misses;
+    }
+
+    public long getEvictions() {
+        return evictions;
+    }
+
+    public long getInvalidations() {
+        return invalidations;
+    }
+
+    /**
+     * @return the share of lookups served from the cache, between 0 and 1
+     */
+    public double getHitRatio() {
+        long lookups = hits + misses;
+        return lookups == 0 ? 0 : (double) hits / lookups;
+    }
+
+    @Override
+    public String toString() {
+        return "ColorSearchCacheStats{" +
+                "entries=" + entries +
+                ", bytes=" + bytes +
+                ", hits=" + hits +
+                ", misses=" + misses +
+                ", evictions=" + evictions +
+                ", invalidations=" + invalidations +
+                '}';
+    }
+}
@@ -0,0 +1,130 @@
+package com.rmeunier.colormatchapi.service;
+
+import com.rmeunier.colormatchapi.model.GenderId;
+
+/**
+ * Options of a color search, on top of the reference color and the number of results.
+ * The facet filters restrict the results to the products with the given gender, sleeve and composition,
+ * null meaning any value.
+ */
+public class ColorSearchOptions {
+
+    /**
+     * EXACT returns the true closest products, APPROX trades accuracy for speed using the color grid.
+     */
+    public enum Mode {
+        EXACT, APPROX
+    }
+
+    /**
+     * The color difference formula used to rank the results.
+     * CIE76 is the index's own metric; the others re-rank candidates found with it.
+     */
+    public enum Metric {
+        CIE76(new Cie76Distance()), CIE94(new Cie94Distance()), CIEDE2000(new Ciede2000Distance());
+
+        private final ColorDistance distance;
+
+        Metric(ColorDistance distance) {
+            this.distance = distance;
+        }
+
+        public ColorDistance getDistance() {
+            return distance;
+        }
+    }
+
+    private Mode mode = Mode.EXACT;
+
+    private Metric metric = Metric.CIE76;
+
+    private int probe = 1;
+
+    private GenderId genderId;
+
+    private String sleeve;
+
+    private String composition;
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    public void setMode(Mode mode) {
+        this.mode = mode;
+    }
+
+    public Metric getMetric() {
+        return metric;
+    }
+
+    public void setMetric(Metric metric) {
+        this.metric = metric;
+    }
+
+    /**
+     * @return the number of rings of grid cells visited around the reference color in APPROX mode
+     */
+    public int getProbe() {
+        return probe;
+    }
+
+    public void setProbe(int probe) {
+        this.probe = probe;
+    }
+
+    public GenderId getGenderId() {
+        return genderId;
+    }
+
+    public void setGenderId(GenderId genderId) {
+        this.genderId = genderId;
+    }
+
+    public String getSleeve() {
+        return sleeve;
+    }
+
+    public void setSleeve(String sleeve) {
+        this.sleeve = sleeve;
+    }
+
+    public String getComposition() {
+        return composition;
+    }
+
+    public void setComposition(String composition) {
+        this.composition = composition;
+    }
+
+    /**
+     * @return whether any facet filter is set
+     */
+    public boolean hasFilters() {
+        return genderId != null || sleeve != null || composition != null;
+    }
+
+    /**
+     * @param genderId    the gender of a product
+     * @param sleeve      the sleeve of a product
+     * @param composition the composition of a product
+     * @return whether a product with these facet values passes the filters
+     */
+    public boolean matches(GenderId genderId, String sleeve, String composition) {
+        return (this.genderId == null || this.genderId == genderId)
+                && (this.sleeve == null || this.sleeve.equals(sleeve))
+                && (this.composition == null || this.composition.equals(composition));
+    }
+
+    @Override
+    public String toString() {
+        return "ColorSearchOptions{" +
+                "mode=" + mode +
+                ", metric=" + metric +
+                ", probe=" + probe +
+                ", genderId=" + genderId +
+                ", sleeve='" + sleeve + '\'' +
+                ", composition='" + composition + '\'' +
+                '}';
+    }
+}
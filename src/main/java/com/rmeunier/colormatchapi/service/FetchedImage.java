@@ -0,0 +1,24 @@
+package com.rmeunier.colormatchapi.service;
+
+/**
+ * The content of a downloaded image, with its SHA-256 hash identifying it in the ImageCache.
+ */
+public class FetchedImage {
+
+    private final byte[] content;
+
+    private final String hash;
+
+    public FetchedImage(byte[] content, String hash) {
+        this.content = content;
+        this.hash = hash;
+    }
+
+    public byte[] getContent() {
+        return content;
+    }
+
+    public String getHash() {
+        return hash;
+    }
+}
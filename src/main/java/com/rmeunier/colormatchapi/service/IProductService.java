@@ -1,12 +1,19 @@
 package com.rmeunier.colormatchapi.service;
 
 import com.rmeunier.colormatchapi.exception.ResourceNotFoundException;
+import com.rmeunier.colormatchapi.model.ColorPalette;
 import com.rmeunier.colormatchapi.model.Product;
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.Pageable;
 
 import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
 
 public interface IProductService {
     List<Product> findAll();
+    List<Product> findPage(String after, int limit);
+    void forEachProduct(Consumer<Product> action);
     Product findById(String id);
     void saveProduct(Product product);
     boolean saveProduct(String id, String title, String genderId,
@@ -19,7 +26,20 @@ public interface IProductService {
 
     int[] findDominantColor(Product product) throws ResourceNotFoundException;
     int[] findDominantColorAndSave(Product product) throws ResourceNotFoundException;
+    ColorPalette findPalette(Product product) throws ResourceNotFoundException;
+    List<ColorPalette> findPalettes(List<? extends Product> products);
     void findDominantColorForAllProducts();
+    void computeColorNeighbours(boolean incremental);
 
     List<Product> getProductsOfColorLike(Product product, int n);
+    List<Product> getProductsOfColorLike(Product product, int n, ColorSearchOptions options);
+    List<Product> getProductsNearColor(int packedRgb, int n, ColorSearchOptions options);
+    List<Product> getProductsNearLab(int packedLab, int n, ColorSearchOptions options);
+    List<Product> getProductsOfPaletteLike(Product product, int n);
+    Map<String, List<Product>> getColorNeighbours(List<String> ids, Map<String, Integer> colors, int n);
+    Page<Product> getProductsWithinColorDistance(int packedLab, double distance, String excludedId,
+                                                 Pageable pageable);
+    double getColorSearchRecall(Product product, int n, int probe);
+    ColorSearchCacheStats getColorSearchCacheStats();
+    ProductCacheStats getProductCacheStats();
 }
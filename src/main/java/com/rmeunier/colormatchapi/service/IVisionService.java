@@ -1,8 +1,13 @@
 package com.rmeunier.colormatchapi.service;
 
 import com.rmeunier.colormatchapi.exception.ResourceNotFoundException;
+import com.rmeunier.colormatchapi.model.ColorPalette;
 import com.rmeunier.colormatchapi.model.Schema;
 
+import java.util.List;
+
 public interface IVisionService {
     int[] loadDominantColorForImage(String filePath, Schema schema) throws ResourceNotFoundException;
+    ColorPalette loadPaletteForImage(String filePath, Schema schema, int size) throws ResourceNotFoundException;
+    List<ColorPalette> loadPalettesForImages(List<String> filePaths, Schema schema, int size);
 }
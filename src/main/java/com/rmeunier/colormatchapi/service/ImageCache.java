@@ -0,0 +1,436 @@
+package com.rmeunier.colormatchapi.service;
+
+import com.rmeunier.colormatchapi.model.ColorPalette;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.stream.Stream;
+
+/**
+ * On-disk cache of the downloaded product images, so a rerun of the dominant color job or of /loadColor does not
+ * download and analyze the same images again.
+ *
+ * The images are stored by the SHA-256 hash of their content in image-cache.dir/blobs, so an image served under
+ * several urls is only stored once. Every url has an entry in image-cache.dir/entries with the hash of its image and
+ * the ETag and Last-Modified validators of the response, which the ImageFetcher sends back to only download the image
+ * again if it changed. The palettes computed for an image are stored next to it, by provider and size, and are
+ * reused for as long as the image content stays the same.
+ *
+ * Beyond image-cache.max-bytes of images, the least recently used ones are deleted along with their palettes.
+ * The access order survives restarts through the modification times of the files. An empty image-cache.dir
+ * disables the cache.
+ */
+@Component
+public class ImageCache {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ImageCache.class);
+
+    private static final String PALETTES_SUFFIX = ".palettes";
+
+    @Value("${image-cache.dir:}")
+    private String directory;
+
+    @Value("${image-cache.max-bytes:1073741824}")
+    private long maxBytes;
+
+    private Path blobDirectory;
+
+    private Path entryDirectory;
+
+    // normalized url -> entry
+    private final Map<String, Entry> entries = new HashMap<>();
+
+    // content hash -> image size, least recently used first
+    private final LinkedHashMap<String, Long> blobs = new LinkedHashMap<>(16, 0.75f, true);
+
+    private long totalBytes;
+
+    /**
+     * Loads the entries and images stored by the previous runs.
+     */
+    @PostConstruct
+    public synchronized void init() {
+        if (directory == null || directory.isEmpty() || maxBytes <= 0) {
+            return;
+        }
+
+        try {
+            Path root = Paths.get(directory);
+            blobDirectory = Files.createDirectories(root.resolve("blobs"));
+            entryDirectory = Files.createDirectories(root.resolve("entries"));
+
+            List<Path> blobFiles = new ArrayList<>();
+            try (Stream<Path> files = Files.list(blobDirectory)) {
+                files.filter(file -> isHash(file.getFileName().toString())).forEach(blobFiles::add);
+            }
+            blobFiles.sort(Comparator.comparing(ImageCache::lastModified));
+            for (Path file : blobFiles) {
+                long size = Files.size(file);
+                blobs.put(file.getFileName().toString(), size);
+                totalBytes += size;
+            }
+
+            try (Stream<Path> files = Files.list(entryDirectory)) {
+                files.forEach(this::loadEntry);
+            }
+            evict();
+
+            LOGGER.info("Image cache loaded with {} urls and {} images ({} bytes)", entries.size(), blobs.size(),
+                    totalBytes);
+        } catch (IOException e) {
+            LOGGER.error("Image cache disabled, as {} cannot be used! Error: {}", directory, e.getMessage());
+            blobDirectory = null;
+            entryDirectory = null;
+            entries.clear();
+            blobs.clear();
+            totalBytes = 0;
+        }
+    }
+
+    /**
+     * @param url the normalized url of an image
+     * @return the cached entry of the url, or null if the url or its image is not cached
+     */
+    public synchronized Entry lookup(String url) {
+        if (blobDirectory == null) {
+            return null;
+        }
+        Entry entry = entries.get(url);
+        return entry != null && blobs.containsKey(entry.hash) ? entry : null;
+    }
+
+    /**
+     * Reads a cached image, marking it as recently used.
+     *
+     * @param hash the hash of the image
+     * @return the content of the image, or null if it is not cached anymore
+     */
+    public byte[] read(String hash) {
+        Path file;
+        synchronized (this) {
+            if (blobDirectory == null || blobs.get(hash) == null) {
+                return null;
+            }
+            file = blobDirectory.resolve(hash);
+        }
+
+        try {
+            byte[] content = Files.readAllBytes(file);
+            Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+            return content;
+        } catch (IOException e) {
+            // evicted meanwhile, or deleted from the disk
+            LOGGER.warn("Could not read the cached image {}! Error: {}", hash, e.getMessage());
+            synchronized (this) {
+                Long size = blobs.remove(hash);
+                totalBytes -= size == null ? 0 : size;
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Stores a downloaded image and the validators of its url, evicting the least recently used images beyond
+     * the size limit.
+     *
+     * @param url          the normalized url of the image
+     * @param etag         the ETag of the response, can be null
+     * @param lastModified the Last-Modified of the response, can be null
+     * @param hash         the hash of the content
+     * @param content      the content of the image
+     */
+    public void store(String url, String etag, String lastModified, String hash, byte[] content) {
+        if (blobDirectory == null || content.length > maxBytes) {
+            return;
+        }
+
+        Entry entry = new Entry(url, etag, lastModified, hash);
+        try {
+            // an image is never changed once written, so concurrent writes of the same image are harmless
+            if (!Files.exists(blobDirectory.resolve(hash))) {
+                writeAtomically(blobDirectory.resolve(hash), out -> out.write(content));
+            }
+            Properties properties = new Properties();
+            properties.setProperty("url", url);
+            properties.setProperty("hash", hash);
+            if (etag != null) {
+                properties.setProperty("etag", etag);
+            }
+            if (lastModified != null) {
+                properties.setProperty("lastModified", lastModified);
+            }
+            writeAtomically(entryDirectory.resolve(hashOf(url.getBytes(StandardCharsets.UTF_8)) + ".properties"),
+                    out -> properties.store(out, null));
+        } catch (IOException e) {
+            LOGGER.error("Could not store the image {} in the cache! Error: {}", url, e.getMessage());
+            return;
+        }
+
+        synchronized (this) {
+            entries.put(url, entry);
+            if (blobs.put(hash, (long) content.length) == null) {
+                totalBytes += content.length;
+            }
+            evict();
+        }
+    }
+
+    /**
+     * @param hash the hash of an image
+     * @param key  the provider and size the palette was computed with
+     * @return the palette computed for the image, or null if there is none
+     */
+    public ColorPalette getPalette(String hash, String key) {
+        Path file;
+        synchronized (this) {
+            if (blobDirectory == null || !blobs.containsKey(hash)) {
+                return null;
+            }
+            file = blobDirectory.resolve(hash + PALETTES_SUFFIX);
+        }
+
+        String value = readProperties(file).getProperty(key);
+        return value == null ? null : parsePalette(value);
+    }
+
+    /**
+     * Stores the palette computed for a cached image.
+     *
+     * @param hash    the hash of the image
+     * @param key     the provider and size the palette was computed with
+     * @param palette the palette
+     */
+    public synchronized void putPalette(String hash, String key, ColorPalette palette) {
+        if (blobDirectory == null || !blobs.containsKey(hash)) {
+            return;
+        }
+
+        Path file = blobDirectory.resolve(hash + PALETTES_SUFFIX);
+        Properties palettes = readProperties(file);
+        palettes.setProperty(key, formatPalette(palette));
+        try {
+            writeAtomically(file, out -> palettes.store(out, null));
+        } catch (IOException e) {
+            LOGGER.error("Could not store the palette of image {}! Error: {}", hash, e.getMessage());
+        }
+    }
+
+    /**
+     * Normalizes an image url, so the same image is cached once: the scheme and host are lower-cased, and the default
+     * port, the fragment and the dot segments of the path are dropped.
+     *
+     * @param uri the url of the image
+     * @return the normalized url
+     */
+    public static String normalize(URI uri) {
+        try {
+            String scheme = uri.getScheme() == null ? null : uri.getScheme().toLowerCase();
+            int port = uri.getPort();
+            if (("http".equals(scheme) && port == 80) || ("https".equals(scheme) && port == 443)) {
+                port = -1;
+            }
+            String host = uri.getHost() == null ? null : uri.getHost().toLowerCase();
+            return new URI(scheme, uri.getUserInfo(), host, port, uri.getPath(), uri.getQuery(), null)
+                    .normalize().toString();
+        } catch (URISyntaxException e) {
+            return uri.toString();
+        }
+    }
+
+    /**
+     * @param content the content to hash
+     * @return the SHA-256 hash of the content, in hexadecimal
+     */
+    public static String hashOf(byte[] content) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(content);
+            StringBuilder hex = new StringBuilder(digest.length * 2);
+            for (byte value : digest) {
+                hex.append(Character.forDigit(value >> 4 & 0xF, 16)).append(Character.forDigit(value & 0xF, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            // every Java platform supports SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Deletes the least recently used images, their palettes and the entries of their urls beyond the size limit.
+     */
+    private void evict() {
+        Iterator<Map.Entry<String, Long>> eldest = blobs.entrySet().iterator();
+        while (totalBytes > maxBytes && eldest.hasNext()) {
+            Map.Entry<String, Long> blob = eldest.next();
+            eldest.remove();
+            totalBytes -= blob.getValue();
+
+            String hash = blob.getKey();
+            try {
+                Files.deleteIfExists(blobDirectory.resolve(hash));
+                Files.deleteIfExists(blobDirectory.resolve(hash + PALETTES_SUFFIX));
+            } catch (IOException e) {
+                LOGGER.warn("Could not delete the cached image {}! Error: {}", hash, e.getMessage());
+            }
+
+            Iterator<Entry> urls = entries.values().iterator();
+            while (urls.hasNext()) {
+                Entry entry = urls.next();
+                if (entry.hash.equals(hash)) {
+                    urls.remove();
+                    try {
+                        Files.deleteIfExists(entryDirectory.resolve(
+                                hashOf(entry.url.getBytes(StandardCharsets.UTF_8)) + ".properties"));
+                    } catch (IOException e) {
+                        LOGGER.warn("Could not delete the cache entry of {}! Error: {}", entry.url, e.getMessage());
+                    }
+                }
+            }
+        }
+    }
+
+    private void loadEntry(Path file) {
+        Properties properties = readProperties(file);
+        String url = properties.getProperty("url");
+        String hash = properties.getProperty("hash");
+        if (url == null || hash == null || !blobs.containsKey(hash)) {
+            try {
+                Files.deleteIfExists(file);
+            } catch (IOException e) {
+                LOGGER.warn("Could not delete the cache entry {}! Error: {}", file, e.getMessage());
+            }
+            return;
+        }
+        entries.put(url, new Entry(url, properties.getProperty("etag"), properties.getProperty("lastModified"), hash));
+    }
+
+    private static Properties readProperties(Path file) {
+        Properties properties = new Properties();
+        try (InputStream in = Files.newInputStream(file)) {
+            properties.load(in);
+        } catch (NoSuchFileException e) {
+            // nothing stored yet
+        } catch (IOException | IllegalArgumentException e) {
+            LOGGER.warn("Could not read {}! Error: {}", file, e.getMessage());
+        }
+        return properties;
+    }
+
+    /**
+     * Writes a file next to its final path then moves it over it, so a reader never sees a partially written file.
+     */
+    private static void writeAtomically(Path path, ContentWriter writer) throws IOException {
+        Path temporary = Files.createTempFile(path.getParent(), path.getFileName().toString(), ".tmp");
+        try {
+            try (OutputStream out = Files.newOutputStream(temporary)) {
+                writer.write(out);
+            }
+            Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            Files.deleteIfExists(temporary);
+            throw e;
+        }
+    }
+
+    private static String formatPalette(ColorPalette palette) {
+        StringBuilder value = new StringBuilder();
+        for (int i = 0; i < palette.size(); i++) {
+            if (i > 0) {
+                value.append(',');
+            }
+            value.append(String.format("%06x", palette.getColors()[i])).append(':').append(palette.getWeights()[i]);
+        }
+        return value.toString();
+    }
+
+    private static ColorPalette parsePalette(String value) {
+        try {
+            String[] colors = value.split(",");
+            int[] packedColors = new int[colors.length];
+            float[] weights = new float[colors.length];
+            for (int i = 0; i < colors.length; i++) {
+                String[] parts = colors[i].split(":");
+                packedColors[i] = Integer.parseInt(parts[0], 16);
+                weights[i] = Float.parseFloat(parts[1]);
+            }
+            return new ColorPalette(packedColors, weights);
+        } catch (RuntimeException e) {
+            LOGGER.warn("Ignoring an unreadable cached palette: {}", value);
+            return null;
+        }
+    }
+
+    private static boolean isHash(String fileName) {
+        return fileName.length() == 64 && fileName.chars().allMatch(c -> Character.digit(c, 16) >= 0);
+    }
+
+    private static FileTime lastModified(Path file) {
+        try {
+            return Files.getLastModifiedTime(file);
+        } catch (IOException e) {
+            return FileTime.fromMillis(0);
+        }
+    }
+
+    private interface ContentWriter {
+        void write(OutputStream out) throws IOException;
+    }
+
+    /**
+     * The cached image of a url, with the validators to revalidate it.
+     */
+    public static final class Entry {
+
+        private final String url;
+
+        private final String etag;
+
+        private final String lastModified;
+
+        private final String hash;
+
+        private Entry(String url, String etag, String lastModified, String hash) {
+            this.url = url;
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.hash = hash;
+        }
+
+        public String getEtag() {
+            return etag;
+        }
+
+        public String getLastModified() {
+            return lastModified;
+        }
+
+        public String getHash() {
+            return hash;
+        }
+    }
+}
@@ -0,0 +1,231 @@
+package com.rmeunier.colormatchapi.service;
+
+import com.rmeunier.colormatchapi.exception.ResourceNotFoundException;
+import com.rmeunier.colormatchapi.model.Schema;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Downloads product images asynchronously with a single shared HttpClient, which keeps its connections alive
+ * and reuses them across downloads. Downloads have connect and read timeouts, and at most
+ * image-fetch.max-per-host downloads run at the same time against a host; the next ones wait in a queue
+ * without holding a thread, and are started on the fetcher's own threads as the running ones end.
+ * file: URLs are read from the disk.
+ *
+ * Every download completes its future with the image content, or exceptionally with a ResourceNotFoundException,
+ * so callers can start the downloads of many images at once and analyze each image as soon as it arrives.
+ *
+ * Downloaded images are kept in the ImageCache. An image already cached is requested again with the ETag and
+ * Last-Modified validators of its previous response, and read from the cache when the server answers it has not
+ * been modified.
+ */
+@Component
+public class ImageFetcher {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ImageFetcher.class);
+
+    private final ExecutorService executor;
+
+    private final HttpClient httpClient;
+
+    private final Duration readTimeout;
+
+    private final int maxPerHost;
+
+    private final Map<String, HostQueue> hosts = new ConcurrentHashMap<>();
+
+    private final ImageCache imageCache;
+
+    @Autowired
+    public ImageFetcher(ImageCache imageCache,
+                        @Value("${image-fetch.connect-timeout-ms:5000}") long connectTimeoutMs,
+                        @Value("${image-fetch.read-timeout-ms:20000}") long readTimeoutMs,
+                        @Value("${image-fetch.max-per-host:8}") int maxPerHost) {
+        AtomicInteger threads = new AtomicInteger();
+        this.executor = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "ImageFetcher-" + threads.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.httpClient = HttpClient.newBuilder()
+                .executor(executor)
+                .connectTimeout(Duration.ofMillis(connectTimeoutMs))
+                .followRedirects(HttpClient.Redirect.NORMAL)
+                .build();
+        this.readTimeout = Duration.ofMillis(readTimeoutMs);
+        this.maxPerHost = Math.max(maxPerHost, 1);
+        this.imageCache = imageCache;
+    }
+
+    @PreDestroy
+    public void destroy() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Starts the download of an image.
+     *
+     * @param filePath the path to the image, without its schema
+     * @param schema   the schema to load the image with
+     * @return the future content of the image
+     */
+    public CompletableFuture<FetchedImage> fetch(String filePath, Schema schema) {
+        String url = schema.label + filePath;
+        URI uri;
+        try {
+            uri = URI.create(url);
+        } catch (IllegalArgumentException e) {
+            LOGGER.error("Invalid image url {}", url);
+            return CompletableFuture.failedFuture(new ResourceNotFoundException(url));
+        }
+
+        if (schema == Schema.FILE) {
+            try {
+                byte[] content = Files.readAllBytes(Paths.get(uri));
+                return CompletableFuture.completedFuture(new FetchedImage(content, ImageCache.hashOf(content)));
+            } catch (IOException | RuntimeException e) {
+                LOGGER.error("Error occurred reading the image file {}... Error: {}", url, e.getMessage());
+                return CompletableFuture.failedFuture(new ResourceNotFoundException(url));
+            }
+        }
+
+        String host = uri.getHost() == null ? "" : uri.getHost();
+        String cacheKey = ImageCache.normalize(uri);
+        return hosts.computeIfAbsent(host, key -> new HostQueue())
+                .submit(() -> download(uri, url, cacheKey, imageCache.lookup(cacheKey)));
+    }
+
+    /**
+     * Downloads an image, conditionally if it is cached.
+     */
+    private CompletableFuture<FetchedImage> download(URI uri, String url, String cacheKey, ImageCache.Entry cached) {
+        HttpRequest request;
+        try {
+            HttpRequest.Builder builder = HttpRequest.newBuilder(uri)
+                    .timeout(readTimeout)
+                    .GET();
+            if (cached != null && cached.getEtag() != null) {
+                builder.header("If-None-Match", cached.getEtag());
+            }
+            if (cached != null && cached.getLastModified() != null) {
+                builder.header("If-Modified-Since", cached.getLastModified());
+            }
+            request = builder.build();
+        } catch (IllegalArgumentException e) {
+            LOGGER.error("Unsupported image url {}", url);
+            return CompletableFuture.failedFuture(new ResourceNotFoundException(url));
+        }
+
+        return httpClient.sendAsync(request, HttpResponse.BodyHandlers.ofByteArray())
+                .thenCompose(response -> {
+                    if (response.statusCode() == 304 && cached != null) {
+                        byte[] content = imageCache.read(cached.getHash());
+                        if (content != null) {
+                            return CompletableFuture.completedFuture(new FetchedImage(content, cached.getHash()));
+                        }
+                        // evicted since the lookup, downloaded again in full
+                        return download(uri, url, cacheKey, null);
+                    }
+                    if (response.statusCode() / 100 != 2) {
+                        LOGGER.error("Image resource {} answered with status {}", url, response.statusCode());
+                        throw new ResourceNotFoundException(url);
+                    }
+
+                    byte[] content = response.body();
+                    String hash = ImageCache.hashOf(content);
+                    imageCache.store(cacheKey, response.headers().firstValue("ETag").orElse(null),
+                            response.headers().firstValue("Last-Modified").orElse(null), hash, content);
+                    return CompletableFuture.completedFuture(new FetchedImage(content, hash));
+                })
+                .exceptionally(error -> {
+                    Throwable cause = error instanceof CompletionException && error.getCause() != null
+                            ? error.getCause() : error;
+                    if (cause instanceof ResourceNotFoundException) {
+                        throw (ResourceNotFoundException) cause;
+                    }
+                    LOGGER.error("Error occurred loading the image resource {}... Error: {}", url,
+                            cause.getMessage());
+                    throw new ResourceNotFoundException(url);
+                });
+    }
+
+    /**
+     * Limits the number of downloads running against a host, starting the queued ones as the running ones end.
+     * A queued download is handed to the executor rather than started by the thread completing the previous one,
+     * so a long queue is never drained on an HttpClient completion thread.
+     */
+    private final class HostQueue {
+
+        private final Queue<Runnable> waiting = new ArrayDeque<>();
+
+        private int running;
+
+        private <T> CompletableFuture<T> submit(Supplier<CompletableFuture<T>> task) {
+            CompletableFuture<T> result = new CompletableFuture<>();
+            Runnable start = () -> {
+                CompletableFuture<T> started;
+                try {
+                    started = task.get();
+                } catch (RuntimeException e) {
+                    release();
+                    result.completeExceptionally(e);
+                    return;
+                }
+                started.whenComplete((value, error) -> {
+                    release();
+                    if (error != null) {
+                        result.completeExceptionally(error instanceof CompletionException && error.getCause() != null
+                                ? error.getCause() : error);
+                    } else {
+                        result.complete(value);
+                    }
+                });
+            };
+
+            synchronized (this) {
+                if (running >= maxPerHost) {
+                    waiting.add(start);
+                    return result;
+                }
+                running++;
+            }
+            start.run();
+            return result;
+        }
+
+        private void release() {
+            Runnable next;
+            synchronized (this) {
+                next = waiting.poll();
+                if (next == null) {
+                    running--;
+                    return;
+                }
+            }
+            executor.execute(next);
+        }
+    }
+}
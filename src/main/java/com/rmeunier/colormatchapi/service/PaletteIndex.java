@@ -0,0 +1,555 @@
+package com.rmeunier.colormatchapi.service;
+
+import com.rmeunier.colormatchapi.dao.ProductRepository;
+import com.rmeunier.colormatchapi.model.ColorPalette;
+import com.rmeunier.colormatchapi.model.ProductPaletteView;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * In-memory index of the palettes of the products, for palette similarity searches.
+ *
+ * Two palettes are compared with a weighted best-match distance: every color of a palette is matched with the
+ * closest color of the other one (CIE76), the distances are averaged by the weights of the colors,
+ * and the averages of both directions are averaged. Identical palettes are at distance 0.
+ *
+ * Comparing the reference palette with every palette of the catalog would be too slow, so the candidates
+ * are generated first through an inverted index from the cells of a coarse L*a*b* grid to the palette colors
+ * inside them. Every product sharing a cell (or a neighbouring one) with a reference color gets the smaller
+ * of both weights as score, and only the best scored products are ranked with the exact distance.
+ * The results are therefore approximate; color-palette.candidate-factor trades speed for accuracy.
+ *
+ * The index is built on the first palette search. Products written afterwards are applied to it as they are
+ * committed, as in ColorIndex: searches go through an immutable view made of the base snapshot, the set of its
+ * entries replaced since then, and a small delta of the written palettes, which are all ranked exactly.
+ * Writes leaving the palette unchanged are ignored. Once the delta grows past color-palette.compaction-threshold
+ * palettes, the snapshot is rebuilt in the background while searches keep using the current view.
+ */
+@Component
+public class PaletteIndex {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(PaletteIndex.class);
+
+    private final ProductRepository productRepository;
+
+    private final ColorProximity colorProximity;
+
+    // edge length of the cells of the inverted index, in Lab units
+    @Value("${color-palette.bin-size:16}")
+    private int binSize;
+
+    // number of candidates ranked with the exact distance per result
+    @Value("${color-palette.candidate-factor:20}")
+    private int candidateFactor;
+
+    // palettes written since the last build after which the index is rebuilt in the background
+    @Value("${color-palette.compaction-threshold:1024}")
+    private int compactionThreshold;
+
+    private ExecutorService compactionExecutor;
+
+    private final AtomicBoolean compacting = new AtomicBoolean();
+
+    private final Object rebuildLock = new Object();
+
+    // guards the publication of views and the pending changes
+    private final Object changeLock = new Object();
+
+    private volatile View view;
+
+    // changes applied while a rebuild loads the palettes, null otherwise
+    private List<Change> pendingChanges;
+
+    @Autowired
+    public PaletteIndex(ProductRepository productRepository, ColorProximity colorProximity) {
+        this.productRepository = productRepository;
+        this.colorProximity = colorProximity;
+    }
+
+    /**
+     * Finds the n products whose palette is the most similar to the given palette.
+     * When fewer than n products share a color cell with the palette, every palette is ranked instead.
+     *
+     * @param palette    the reference palette
+     * @param n          the number of matches to retrieve
+     * @param excludedId the id of a product to leave out of the results (e.g. the reference product), can be null
+     * @return the n most similar palettes, most similar first, with their palette distance
+     */
+    public List<ColorMatch> findClosest(ColorPalette palette, int n, String excludedId) {
+        View current = getView();
+        Snapshot base = current.base;
+        int[] labs = labsOf(palette.getColors());
+        float[] weights = palette.getWeights();
+        int excluded = current.indexOf(excludedId);
+        int k = Math.max(Math.min(n, current.size()), 0);
+
+        float[] scores = new float[base.size()];
+        List<Integer> touched = new ArrayList<>();
+        for (int i = 0; i < labs.length; i++) {
+            base.score(labs[i], weights[i], scores, touched);
+        }
+
+        int available = 0;
+        for (int index : touched) {
+            if (index != excluded && !current.removed.get(index)) {
+                available++;
+            }
+        }
+
+        TopKSelector selector = current.newSelector(k);
+        if (available < k) {
+            for (int index = 0; index < base.size(); index++) {
+                if (index != excluded) {
+                    selector.offer(base.distance(index, labs, weights), index);
+                }
+            }
+        } else {
+            // the best scored candidates are selected by their negated score
+            TopKSelector candidates = current.newSelector(Math.min(k * Math.max(candidateFactor, 1), available));
+            for (int index : touched) {
+                if (index != excluded) {
+                    candidates.offer(-scores[index], index);
+                }
+            }
+            int count = candidates.sort();
+            for (int i = 0; i < count; i++) {
+                int index = candidates.indexAt(i);
+                selector.offer(base.distance(index, labs, weights), index);
+            }
+        }
+
+        // the palettes written since the base was built are few enough to be ranked exactly
+        for (int i = 0; i < current.delta.length; i++) {
+            int index = base.size() + i;
+            if (index != excluded) {
+                PaletteEntry entry = current.delta[i];
+                selector.offer(paletteDistance(entry.labs, entry.weights, 0, entry.labs.length, labs, weights),
+                        index);
+            }
+        }
+
+        int count = selector.sort();
+        List<ColorMatch> matches = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            matches.add(new ColorMatch(current.idAt(selector.indexAt(i)), selector.distanceAt(i)));
+        }
+        return matches;
+    }
+
+    /**
+     * Applies a written product to the live index: its previous palette, if any, is replaced.
+     * Should be called once the write is committed. Nothing is done if the palette did not change.
+     *
+     * @param id             the id of the product
+     * @param paletteColors  the palette colors of the product as 0xRRGGBB, null if it has no palette
+     * @param paletteWeights the weights of the palette colors in ten-thousandths
+     */
+    public void update(String id, int[] paletteColors, int[] paletteWeights) {
+        PaletteEntry entry = paletteColors == null ? null : new PaletteEntry(id, labsOf(paletteColors),
+                weightsOf(paletteWeights));
+        apply(new Change(id, entry));
+    }
+
+    /**
+     * Removes a deleted product from the live index. Should be called once the delete is committed.
+     *
+     * @param id the id of the product
+     */
+    public void remove(String id) {
+        apply(new Change(id, null));
+    }
+
+    /**
+     * Creates the thread compacting the index.
+     */
+    @PostConstruct
+    public void init() {
+        compactionExecutor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "PaletteIndexCompaction");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @PreDestroy
+    public void destroy() {
+        compactionExecutor.shutdownNow();
+    }
+
+    /**
+     * Rebuilds the index from the database. Searches keep using the previous view until the new one is ready.
+     * The changes applied while the palettes are loaded are applied again on top of the new snapshot,
+     * as the load may or may not have seen them.
+     */
+    public void rebuild() {
+        synchronized (rebuildLock) {
+            synchronized (changeLock) {
+                pendingChanges = new ArrayList<>();
+            }
+
+            long start = System.currentTimeMillis();
+            List<ProductPaletteView> palettes = productRepository.findByPaletteColorsIsNotNullOrderByIdAsc();
+            Snapshot snapshot = new Snapshot(palettes);
+
+            synchronized (changeLock) {
+                View next = new View(snapshot);
+                for (Change change : pendingChanges) {
+                    next = next.with(change);
+                }
+                view = next;
+                pendingChanges = null;
+            }
+
+            LOGGER.info("Palette index built with {} products in {} ms", palettes.size(),
+                    System.currentTimeMillis() - start);
+        }
+    }
+
+    /**
+     * Publishes a new view with the change, copying only the replaced-entries set and the small delta.
+     * Once the delta reaches color-palette.compaction-threshold palettes, the index is rebuilt in the background.
+     */
+    private void apply(Change change) {
+        boolean compact;
+        synchronized (changeLock) {
+            if (pendingChanges != null) {
+                pendingChanges.add(change);
+            }
+            if (view == null) {
+                return;
+            }
+            view = view.with(change);
+            compact = view.delta.length >= compactionThreshold && pendingChanges == null;
+        }
+
+        if (compact && compacting.compareAndSet(false, true)) {
+            compactionExecutor.execute(() -> {
+                try {
+                    rebuild();
+                } catch (RuntimeException e) {
+                    LOGGER.error("Palette index compaction failed! Error: {}", e.getMessage());
+                } finally {
+                    compacting.set(false);
+                }
+            });
+        }
+    }
+
+    /**
+     * @return the current view, built on the first call only: later rebuilds never block searches
+     */
+    private View getView() {
+        if (view == null) {
+            synchronized (rebuildLock) {
+                if (view == null) {
+                    rebuild();
+                }
+            }
+        }
+        return view;
+    }
+
+    private int[] labsOf(int[] colors) {
+        int[] labs = new int[colors.length];
+        for (int i = 0; i < colors.length; i++) {
+            labs[i] = colorProximity.labOf(colors[i]);
+        }
+        return labs;
+    }
+
+    private static float[] weightsOf(int[] paletteWeights) {
+        float[] weights = new float[paletteWeights.length];
+        for (int i = 0; i < weights.length; i++) {
+            weights[i] = paletteWeights[i] / 10000f;
+        }
+        return weights;
+    }
+
+    /**
+     * Weighted best-match distance between two palettes, averaged over both directions.
+     */
+    private double paletteDistance(int[] labs1, float[] weights1, int from, int to,
+                                   int[] labs2, float[] weights2) {
+        double forward = 0;
+        for (int i = from; i < to; i++) {
+            int closest = Integer.MAX_VALUE;
+            for (int lab : labs2) {
+                closest = Math.min(closest, colorProximity.labDistanceSq(labs1[i], lab));
+            }
+            forward += weights1[i] * Math.sqrt(closest);
+        }
+
+        double backward = 0;
+        for (int j = 0; j < labs2.length; j++) {
+            int closest = Integer.MAX_VALUE;
+            for (int i = from; i < to; i++) {
+                closest = Math.min(closest, colorProximity.labDistanceSq(labs1[i], labs2[j]));
+            }
+            backward += weights2[j] * Math.sqrt(closest);
+        }
+
+        return (forward + backward) / 2;
+    }
+
+    /**
+     * Immutable base state of the index, replaced as a whole upon rebuilding.
+     * The palette colors of all products are stored one after the other, the colors of product i being at
+     * positions [offsets[i], offsets[i + 1]), and every cell of the grid lists the positions of the colors inside it.
+     */
+    private final class Snapshot {
+
+        private final String[] ids;
+
+        private final int[] offsets;
+
+        private final int[] labs;
+
+        private final float[] weights;
+
+        // product index of every color position
+        private final int[] owners;
+
+        private final Map<Integer, int[]> cells = new HashMap<>();
+
+        private final Map<String, Integer> positions;
+
+        private Snapshot(List<ProductPaletteView> palettes) {
+            int size = palettes.size();
+            ids = new String[size];
+            offsets = new int[size + 1];
+            positions = new HashMap<>(size * 2);
+            for (int i = 0; i < size; i++) {
+                ids[i] = palettes.get(i).getId();
+                offsets[i + 1] = offsets[i] + palettes.get(i).getPaletteColors().length;
+                positions.put(ids[i], i);
+            }
+
+            labs = new int[offsets[size]];
+            weights = new float[offsets[size]];
+            owners = new int[offsets[size]];
+            Map<Integer, List<Integer>> members = new HashMap<>();
+            for (int i = 0; i < size; i++) {
+                int[] colors = palettes.get(i).getPaletteColors();
+                int[] colorWeights = palettes.get(i).getPaletteWeights();
+                for (int c = 0; c < colors.length; c++) {
+                    int position = offsets[i] + c;
+                    labs[position] = colorProximity.labOf(colors[c]);
+                    weights[position] = colorWeights[c] / 10000f;
+                    owners[position] = i;
+                    members.computeIfAbsent(cellOf(labs[position], 0, 0, 0), cell -> new ArrayList<>())
+                            .add(position);
+                }
+            }
+            members.forEach((cell, list) -> cells.put(cell, list.stream().mapToInt(Integer::intValue).toArray()));
+        }
+
+        /**
+         * @return true if the palette of the product at the index has the given colors and weights
+         */
+        private boolean hasPalette(int index, int[] paletteLabs, float[] paletteWeights) {
+            return Arrays.equals(labs, offsets[index], offsets[index + 1], paletteLabs, 0, paletteLabs.length)
+                    && Arrays.equals(weights, offsets[index], offsets[index + 1],
+                    paletteWeights, 0, paletteWeights.length);
+        }
+
+        private int size() {
+            return ids.length;
+        }
+
+        private int indexOf(String id) {
+            Integer position = id == null ? null : positions.get(id);
+            return position == null ? -1 : position;
+        }
+
+        /**
+         * Adds the overlap of a reference color with the palette colors in its cell and the neighbouring ones
+         * to the scores of their products, and lists the products scored for the first time.
+         */
+        private void score(int lab, float weight, float[] scores, List<Integer> touched) {
+            for (int dl = -1; dl <= 1; dl++) {
+                for (int da = -1; da <= 1; da++) {
+                    for (int db = -1; db <= 1; db++) {
+                        int[] cell = cells.get(cellOf(lab, dl, da, db));
+                        if (cell == null) {
+                            continue;
+                        }
+                        for (int position : cell) {
+                            int owner = owners[position];
+                            if (scores[owner] == 0) {
+                                touched.add(owner);
+                            }
+                            scores[owner] += Math.max(Math.min(weight, weights[position]), Float.MIN_VALUE);
+                        }
+                    }
+                }
+            }
+        }
+
+        private double distance(int index, int[] referenceLabs, float[] referenceWeights) {
+            return paletteDistance(labs, weights, offsets[index], offsets[index + 1], referenceLabs, referenceWeights);
+        }
+
+        /**
+         * Key of the cell of a packed L*a*b color, moved by the given number of cells along each axis.
+         * Every axis spans 256 Lab units, so it has at most 258 cells with the moves, and fits in 10 bits of the key.
+         */
+        private int cellOf(int lab, int dl, int da, int db) {
+            int l = Math.floorDiv(ColorProximity.lightness(lab), binSize) + dl;
+            int a = Math.floorDiv(ColorProximity.greenRed(lab), binSize) + da;
+            int b = Math.floorDiv(ColorProximity.blueYellow(lab), binSize) + db;
+            return (l & 0x3FF) << 20 | (a & 0x3FF) << 10 | (b & 0x3FF);
+        }
+    }
+
+    /**
+     * Immutable view of the index searched by a query: the base snapshot without its replaced entries,
+     * and the delta of the palettes written since it was built, which get the indices following the base's.
+     */
+    private static final class View {
+
+        private final Snapshot base;
+
+        // base indices of the products written or deleted since the base was built
+        private final BitSet removed;
+
+        private final int removedCount;
+
+        private final PaletteEntry[] delta;
+
+        private final Map<String, Integer> deltaPositions;
+
+        private View(Snapshot base) {
+            this(base, new BitSet(), 0, new PaletteEntry[0]);
+        }
+
+        private View(Snapshot base, BitSet removed, int removedCount, PaletteEntry[] delta) {
+            this.base = base;
+            this.removed = removed;
+            this.removedCount = removedCount;
+            this.delta = delta;
+            deltaPositions = new HashMap<>(delta.length * 2);
+            for (int i = 0; i < delta.length; i++) {
+                deltaPositions.put(delta[i].id, i);
+            }
+        }
+
+        /**
+         * @return a copy of this view with the change applied, or this view if the palette did not change
+         */
+        private View with(Change change) {
+            if (isUnchanged(change)) {
+                return this;
+            }
+
+            BitSet nextRemoved = removed;
+            int nextRemovedCount = removedCount;
+            int position = base.indexOf(change.id);
+            if (position >= 0 && !removed.get(position)) {
+                nextRemoved = (BitSet) removed.clone();
+                nextRemoved.set(position);
+                nextRemovedCount++;
+            }
+
+            List<PaletteEntry> nextDelta = new ArrayList<>(delta.length + 1);
+            for (PaletteEntry entry : delta) {
+                if (!entry.id.equals(change.id)) {
+                    nextDelta.add(entry);
+                }
+            }
+            if (change.entry != null) {
+                nextDelta.add(change.entry);
+            }
+
+            return new View(base, nextRemoved, nextRemovedCount, nextDelta.toArray(new PaletteEntry[0]));
+        }
+
+        private boolean isUnchanged(Change change) {
+            Integer deltaPosition = deltaPositions.get(change.id);
+            if (deltaPosition != null) {
+                PaletteEntry current = delta[deltaPosition];
+                return change.entry != null && Arrays.equals(current.labs, change.entry.labs)
+                        && Arrays.equals(current.weights, change.entry.weights);
+            }
+            int position = base.indexOf(change.id);
+            if (position < 0 || removed.get(position)) {
+                return change.entry == null;
+            }
+            return change.entry != null && base.hasPalette(position, change.entry.labs, change.entry.weights);
+        }
+
+        /**
+         * @return the number of products in the view
+         */
+        private int size() {
+            return base.size() - removedCount + delta.length;
+        }
+
+        private int indexOf(String id) {
+            if (id == null) {
+                return -1;
+            }
+            Integer deltaPosition = deltaPositions.get(id);
+            if (deltaPosition != null) {
+                return base.size() + deltaPosition;
+            }
+            int position = base.indexOf(id);
+            return position >= 0 && !removed.get(position) ? position : -1;
+        }
+
+        private String idAt(int index) {
+            return index < base.size() ? base.ids[index] : delta[index - base.size()].id;
+        }
+
+        private TopKSelector newSelector(int k) {
+            return new TopKSelector(k, removedCount == 0 ? null : removed);
+        }
+    }
+
+    /**
+     * The palette of a product written since the base snapshot was built.
+     */
+    private static final class PaletteEntry {
+
+        private final String id;
+
+        private final int[] labs;
+
+        private final float[] weights;
+
+        private PaletteEntry(String id, int[] labs, float[] weights) {
+            this.id = id;
+            this.labs = labs;
+            this.weights = weights;
+        }
+    }
+
+    /**
+     * A write to apply to the index: the new palette of the product, or null if it has been deleted or has none.
+     */
+    private static final class Change {
+
+        private final String id;
+
+        private final PaletteEntry entry;
+
+        private Change(String id, PaletteEntry entry) {
+            this.id = id;
+            this.entry = entry;
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package com.rmeunier.colormatchapi.service;
+
+import com.rmeunier.colormatchapi.model.Product;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Bounded LRU cache of products by id, in front of the ProductRepository for lookups by id.
+ * Entries expire after product-cache.ttl-seconds, and the least recently used ones are evicted beyond
+ * product-cache.max-entries.
+ *
+ * Every committed write or delete evicts the product, whichever way it is written (see ProductColorIndexListener),
+ * and the product is cached again by the next lookup. The cache is versioned like the ColorSearchCache: a product
+ * read from the database before an eviction is not stored, so a lookup running during a write cannot put an outdated
+ * product back. The cache keeps its own copies of the products and hands out copies, so a caller modifying a product it got
+ * from the cache, e.g. before saving it, never changes what other callers see.
+ */
+@Component
+public class ProductCache {
+
+    @Value("${product-cache.max-entries:10000}")
+    private int maxEntries;
+
+    @Value("${product-cache.ttl-seconds:600}")
+    private long ttlSeconds;
+
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    private long version;
+
+    private long hits;
+
+    private long misses;
+
+    private long evictions;
+
+    private long expirations;
+
+    /**
+     * @return the current version, to pass to put along with the product read after reading it
+     */
+    public synchronized long version() {
+        return version;
+    }
+
+    /**
+     * Looks up a product, counting the hit or miss. Expired entries are dropped.
+     *
+     * @param id the id of the product
+     * @return a copy of the product, or null if it is not cached
+     */
+    public synchronized Product get(String id) {
+        Entry entry = entries.get(id);
+        if (entry != null && entry.expiresAt <= System.currentTimeMillis()) {
+            entries.remove(id);
+            expirations++;
+            entry = null;
+        }
+        if (entry == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return new Product(entry.product);
+    }
+
+    /**
+     * Stores a product read from the database, unless a product was evicted since the version was read,
+     * evicting the least recently used entries beyond the limit.
+     *
+     * @param product the product
+     * @param version the version read before reading the product
+     */
+    public synchronized void put(Product product, long version) {
+        if (version != this.version || maxEntries <= 0) {
+            return;
+        }
+
+        entries.put(product.getId(), new Entry(new Product(product),
+                System.currentTimeMillis() + ttlSeconds * 1000));
+
+        Iterator<Entry> eldest = entries.values().iterator();
+        while (entries.size() > maxEntries) {
+            eldest.next();
+            eldest.remove();
+            evictions++;
+        }
+    }
+
+    /**
+     * Drops a product and bumps the version. Should be called whenever a product is written or deleted.
+     *
+     * @param id the id of the product
+     */
+    public synchronized void evict(String id) {
+        version++;
+        entries.remove(id);
+    }
+
+    /**
+     * @return the counters of the cache, to size it
+     */
+    public synchronized ProductCacheStats stats() {
+        return new ProductCacheStats(entries.size(), hits, misses, evictions, expirations);
+    }
+
+    private static final class Entry {
+
+        private final Product product;
+
+        private final long expiresAt;
+
+        private Entry(Product product, long expiresAt) {
+            this.product = product;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
@@ -0,0 +1,169 @@
+package com.rmeunier.colormatchapi.service;
+
+import java.util.BitSet;
+
+/**
+ * Keeps the k smallest (distance, index) pairs offered to it, using a fixed-size max-heap
+ * stored in primitive arrays. Selecting k out of n elements costs O(n log k) time and O(k) memory.
+ *
+ * Pairs are ordered by distance, then by index, so equal distances are always resolved the same way.
+ * Not thread-safe: every scan should use its own selector.
+ */
+public class TopKSelector {
+
+    private final int k;
+
+    private final double[] distances;
+
+    private final int[] indices;
+
+    // indices that are never kept, e.g. index entries replaced since the index was built, can be null
+    private final BitSet skipped;
+
+    private int size;
+
+    public TopKSelector(int k) {
+        this(k, null);
+    }
+
+    public TopKSelector(int k, BitSet skipped) {
+        if (k < 0) {
+            throw new IllegalArgumentException("Error: k cannot be negative!");
+        }
+        this.k = k;
+        this.distances = new double[k];
+        this.indices = new int[k];
+        this.skipped = skipped;
+    }
+
+    /**
+     * Offers a candidate to the selector. It is kept only if it is among the k smallest seen so far,
+     * and is not skipped.
+     *
+     * @param distance the candidate's distance
+     * @param index    the candidate's index
+     */
+    public void offer(double distance, int index) {
+        if (skipped != null && skipped.get(index)) {
+            return;
+        }
+        if (size < k) {
+            distances[size] = distance;
+            indices[size] = index;
+            siftUp(size++);
+        } else if (k > 0 && isLess(distance, index, distances[0], indices[0])) {
+            distances[0] = distance;
+            indices[0] = index;
+            siftDown(0);
+        }
+    }
+
+    /**
+     * The largest distance currently kept, or positive infinity while fewer than k candidates were offered
+     * (negative infinity when k is 0). Any candidate farther than this cannot make it into the selection.
+     *
+     * @return the distance bound of the selection
+     */
+    public double worstDistance() {
+        if (k == 0) {
+            return Double.NEGATIVE_INFINITY;
+        }
+        return size < k ? Double.POSITIVE_INFINITY : distances[0];
+    }
+
+    /**
+     * Offers every candidate kept by another selector, e.g. to merge the selections of partial scans.
+     * The other selector must not have been sorted yet.
+     *
+     * @param other the selector to merge into this one
+     */
+    public void offerAll(TopKSelector other) {
+        for (int i = 0; i < other.size; i++) {
+            offer(other.distances[i], other.indices[i]);
+        }
+    }
+
+    public int capacity() {
+        return k;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isFull() {
+        return size == k;
+    }
+
+    /**
+     * Sorts the kept candidates in place, closest first. The heap cannot be offered to anymore afterwards.
+     *
+     * @return the number of kept candidates, readable with {@link #indexAt(int)} and {@link #distanceAt(int)}
+     */
+    public int sort() {
+        // heap sort: repeatedly move the largest element to the end of the heap
+        for (int end = size - 1; end > 0; end--) {
+            swap(0, end);
+            siftDown(0, end);
+        }
+        return size;
+    }
+
+    public int indexAt(int position) {
+        return indices[position];
+    }
+
+    public double distanceAt(int position) {
+        return distances[position];
+    }
+
+    private void siftUp(int position) {
+        while (position > 0) {
+            int parent = (position - 1) >>> 1;
+            if (!isLess(distances[parent], indices[parent], distances[position], indices[position])) {
+                return;
+            }
+            swap(parent, position);
+            position = parent;
+        }
+    }
+
+    private void siftDown(int position) {
+        siftDown(position, size);
+    }
+
+    private void siftDown(int position, int end) {
+        while (true) {
+            int largest = position;
+            int left = 2 * position + 1;
+            int right = left + 1;
+
+            if (left < end && isLess(distances[largest], indices[largest], distances[left], indices[left])) {
+                largest = left;
+            }
+            if (right < end && isLess(distances[largest], indices[largest], distances[right], indices[right])) {
+                largest = right;
+            }
+            if (largest == position) {
+                return;
+            }
+            swap(position, largest);
+            position = largest;
+        }
+    }
+
+    private void swap(int i, int j) {
+        double distance = distances[i];
+        distances[i] = distances[j];
+        distances[j] = distance;
+
+        int index = indices[i];
+        indices[i] = indices[j];
+        indices[j] = index;
+    }
+
+    private static boolean isLess(double distance1, int index1, double distance2, int index2) {
+        int comparison = Double.compare(distance1, distance2);
+        return comparison < 0 || (comparison == 0 && index1 < index2);
+    }
+}
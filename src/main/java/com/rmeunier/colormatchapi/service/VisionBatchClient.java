@@ -0,0 +1,24 @@
+package com.rmeunier.colormatchapi.service;
+
+import com.google.cloud.vision.v1.AnnotateImageRequest;
+import com.google.cloud.vision.v1.AnnotateImageResponse;
+
+import java.util.List;
+
+/**
+ * Sends several image annotation requests to the Vision API in a single call.
+ * Kept apart from the VisionService so a fake client can stand in for the API.
+ */
+public interface VisionBatchClient {
+
+    /**
+     * Maximum number of images the Vision API accepts in a single synchronous call.
+     */
+    int MAX_BATCH_SIZE = 16;
+
+    /**
+     * @param requests at most MAX_BATCH_SIZE requests
+     * @return one response per request, in the order of the requests. A failed image has a response with an error.
+     */
+    List<AnnotateImageResponse> batchAnnotateImages(List<AnnotateImageRequest> requests);
+}
@@ -0,0 +1,31 @@
+package com.rmeunier.colormatchapi.service.impl;
+
+import com.google.cloud.vision.v1.AnnotateImageRequest;
+import com.google.cloud.vision.v1.AnnotateImageResponse;
+import com.google.cloud.vision.v1.ImageAnnotatorClient;
+import com.rmeunier.colormatchapi.service.VisionBatchClient;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import java.util.List;
+
+/**
+ * VisionBatchClient calling the Google Vision API through the ImageAnnotatorClient configured by Spring GCP.
+ */
+@Component
+@ConditionalOnProperty(name = "vision.provider", havingValue = "google", matchIfMissing = true)
+public class CloudVisionBatchClient implements VisionBatchClient {
+
+    private final ImageAnnotatorClient imageAnnotatorClient;
+
+    @Autowired
+    public CloudVisionBatchClient(ImageAnnotatorClient imageAnnotatorClient) {
+        this.imageAnnotatorClient = imageAnnotatorClient;
+    }
+
+    @Override
+    public List<AnnotateImageResponse> batchAnnotateImages(List<AnnotateImageRequest> requests) {
+        return imageAnnotatorClient.batchAnnotateImages(requests).getResponsesList();
+    }
+}
@@ -0,0 +1,400 @@
+package com.rmeunier.colormatchapi.service.impl;
+
+import com.rmeunier.colormatchapi.exception.ColorMissingException;
+import com.rmeunier.colormatchapi.exception.ResourceNotFoundException;
+import com.rmeunier.colormatchapi.model.ColorPalette;
+import com.rmeunier.colormatchapi.model.Schema;
+import com.rmeunier.colormatchapi.service.ColorProximity;
+import com.rmeunier.colormatchapi.service.FetchedImage;
+import com.rmeunier.colormatchapi.service.IVisionService;
+import com.rmeunier.colormatchapi.service.ImageCache;
+import com.rmeunier.colormatchapi.service.ImageFetcher;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Service;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/**
+ * Offline alternative to the Google Vision API, enabled with vision.provider=local.
+ *
+ * The image is downloaded by the ImageFetcher, decoded with ImageIO and sampled on a grid of at most
+ * vision.local.max-dimension pixels per side, skipping transparent pixels. The distinct sampled colors are then
+ * grouped by a weighted k-means in L*a*b*, into vision.local.clusters clusters (or more if a bigger palette is
+ * requested). Every cluster gives one palette color, the sampled color closest to its centroid, weighted by the
+ * share of the samples in the cluster.
+ * Clusters closer than vision.local.merge-distance to a bigger one are merged into it, as k-means tends to split
+ * a large shaded area into several clusters of nearly the same color.
+ * The centroids are seeded deterministically, so an image always gives the same palette.
+ */
+@Service
+@ConditionalOnProperty(name = "vision.provider", havingValue = "local")
+public class LocalVisionService implements IVisionService {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(LocalVisionService.class);
+
+    // pixels with a lower alpha are considered background
+    private static final int MIN_ALPHA = 128;
+
+    private final ColorProximity colorProximity;
+
+    private final ImageFetcher imageFetcher;
+
+    private final ImageCache imageCache;
+
+    @Value("${vision.local.max-dimension:64}")
+    private int maxDimension;
+
+    @Value("${vision.local.clusters:8}")
+    private int clusters;
+
+    @Value("${vision.local.iterations:10}")
+    private int iterations;
+
+    // clusters whose centroids are closer than this CIE76 distance are merged
+    @Value("${vision.local.merge-distance:12}")
+    private float mergeDistance;
+
+    @Autowired
+    public LocalVisionService(ColorProximity colorProximity, ImageFetcher imageFetcher, ImageCache imageCache) {
+        this.colorProximity = colorProximity;
+        this.imageFetcher = imageFetcher;
+        this.imageCache = imageCache;
+    }
+
+    /**
+     * Loads the image and returns the color of its biggest cluster.
+     *
+     * @param filePath the file path to the image
+     * @param schema the way the HTTP connection should be handled
+     * @return the RGB vector for the dominant color
+     * @throws ResourceNotFoundException if the image cannot be loaded or decoded.
+     */
+    @Override
+    public int[] loadDominantColorForImage(String filePath, Schema schema) throws ResourceNotFoundException {
+        int[] rgb = loadPaletteForImage(filePath, schema, 1).getDominantColor();
+
+        LOGGER.debug("Dominant color: {}", Arrays.toString(rgb));
+
+        return rgb;
+    }
+
+    /**
+     * Loads the image and quantizes its colors with a k-means in L*a*b*.
+     *
+     * @param filePath the file path to the image
+     * @param schema the way the HTTP connection should be handled
+     * @param size the maximum number of colors to keep
+     * @return the palette of the image, biggest cluster first, with its weights normalized to sum up to 1
+     * @throws ResourceNotFoundException if the image cannot be loaded or decoded.
+     */
+    @Override
+    public ColorPalette loadPaletteForImage(String filePath, Schema schema, int size)
+            throws ResourceNotFoundException {
+        return getPalette(filePath, imageFetcher.fetch(filePath, schema), size);
+    }
+
+    /**
+     * Downloads the images concurrently, and quantizes every image once downloaded.
+     *
+     * @param filePaths the file paths to the images
+     * @param schema the way the HTTP connection should be handled
+     * @param size the maximum number of colors to keep per image
+     * @return the palettes in the order of the file paths, null for the images that failed
+     */
+    @Override
+    public List<ColorPalette> loadPalettesForImages(List<String> filePaths, Schema schema, int size) {
+        List<CompletableFuture<FetchedImage>> downloads = new ArrayList<>(filePaths.size());
+        for (String filePath : filePaths) {
+            downloads.add(imageFetcher.fetch(filePath, schema));
+        }
+
+        List<ColorPalette> palettes = new ArrayList<>(filePaths.size());
+        for (int i = 0; i < filePaths.size(); i++) {
+            try {
+                palettes.add(getPalette(filePaths.get(i), downloads.get(i), size));
+            } catch (ResourceNotFoundException | ColorMissingException e) {
+                LOGGER.error("Could not get the palette of image {}! Error: {}", filePaths.get(i), e.getMessage());
+                palettes.add(null);
+            }
+        }
+        return palettes;
+    }
+
+    private ColorPalette getPalette(String filePath, CompletableFuture<FetchedImage> download, int size)
+            throws ResourceNotFoundException {
+        FetchedImage fetched = fetchImage(filePath, download);
+        ColorPalette cached = imageCache.getPalette(fetched.getHash(), paletteKey(size));
+        if (cached != null) {
+            return cached;
+        }
+
+        BufferedImage image = readImage(filePath, fetched.getContent());
+
+        ColorPalette palette = quantize(image, Math.max(size, 1));
+
+        if (palette == null) {
+            LOGGER.error("Could not obtain any colors from this image!");
+            throw new ColorMissingException();
+        }
+
+        LOGGER.debug("Palette: {}", palette);
+        imageCache.putPalette(fetched.getHash(), paletteKey(size), palette);
+
+        return palette;
+    }
+
+    /**
+     * Quantizes the colors of an image.
+     *
+     * @param image the decoded image
+     * @param size the maximum number of colors to keep
+     * @return the palette, or null if the image has no opaque pixel
+     */
+    private ColorPalette quantize(BufferedImage image, int size) {
+        // distinct sampled colors with their number of samples
+        Map<Integer, Integer> histogram = new HashMap<>();
+        int step = Math.max(1, (Math.max(image.getWidth(), image.getHeight()) + maxDimension - 1) / maxDimension);
+        for (int y = step / 2; y < image.getHeight(); y += step) {
+            for (int x = step / 2; x < image.getWidth(); x += step) {
+                int argb = image.getRGB(x, y);
+                if ((argb >>> 24) >= MIN_ALPHA) {
+                    histogram.merge(argb & 0xFFFFFF, 1, Integer::sum);
+                }
+            }
+        }
+
+        if (histogram.isEmpty()) {
+            return null;
+        }
+
+        int count = histogram.size();
+        int[] colors = new int[count];
+        int[] samples = new int[count];
+        float[][] labs = new float[count][];
+        int total = 0;
+        int i = 0;
+        for (Map.Entry<Integer, Integer> entry : histogram.entrySet()) {
+            colors[i] = entry.getKey();
+            samples[i] = entry.getValue();
+            int lab = colorProximity.labOf(colors[i]);
+            labs[i] = new float[] {ColorProximity.lightness(lab), ColorProximity.greenRed(lab),
+                    ColorProximity.blueYellow(lab)};
+            total += samples[i];
+            i++;
+        }
+
+        int k = Math.min(Math.max(clusters, size), count);
+        float[][] centroids = seed(labs, samples, k);
+        int[] assignments = new int[count];
+        Arrays.fill(assignments, -1);
+
+        for (int iteration = 0; iteration < Math.max(iterations, 1); iteration++) {
+            boolean changed = false;
+            for (int c = 0; c < count; c++) {
+                int closest = closest(centroids, labs[c]);
+                if (closest != assignments[c]) {
+                    assignments[c] = closest;
+                    changed = true;
+                }
+            }
+            if (!changed) {
+                break;
+            }
+
+            float[][] sums = new float[k][3];
+            int[] weights = new int[k];
+            for (int c = 0; c < count; c++) {
+                int cluster = assignments[c];
+                for (int axis = 0; axis < 3; axis++) {
+                    sums[cluster][axis] += labs[c][axis] * samples[c];
+                }
+                weights[cluster] += samples[c];
+            }
+            for (int cluster = 0; cluster < k; cluster++) {
+                if (weights[cluster] > 0) {
+                    for (int axis = 0; axis < 3; axis++) {
+                        centroids[cluster][axis] = sums[cluster][axis] / weights[cluster];
+                    }
+                }
+            }
+        }
+
+        // every cluster is represented by its sampled color closest to the centroid
+        int[] weights = new int[k];
+        int[] representatives = new int[k];
+        float[] representativeDistances = new float[k];
+        Arrays.fill(representativeDistances, Float.MAX_VALUE);
+        for (int c = 0; c < count; c++) {
+            int cluster = assignments[c];
+            weights[cluster] += samples[c];
+            float distance = distanceSq(centroids[cluster], labs[c]);
+            if (distance < representativeDistances[cluster]) {
+                representativeDistances[cluster] = distance;
+                representatives[cluster] = colors[c];
+            }
+        }
+
+        Integer[] order = new Integer[k];
+        for (int cluster = 0; cluster < k; cluster++) {
+            order[cluster] = cluster;
+        }
+        Arrays.sort(order, (c1, c2) -> Integer.compare(weights[c2], weights[c1]));
+
+        // clusters too close to a heavier one are merged into it, as k-means splits large shaded areas
+        float mergeDistanceSq = mergeDistance * mergeDistance;
+        int[] merged = new int[k];
+        int[] mergedWeights = new int[k];
+        int distinct = 0;
+        for (int c = 0; c < k && weights[order[c]] > 0; c++) {
+            int cluster = order[c];
+            int target = -1;
+            for (int d = 0; d < distinct && target < 0; d++) {
+                if (distanceSq(centroids[merged[d]], centroids[cluster]) <= mergeDistanceSq) {
+                    target = d;
+                }
+            }
+            if (target < 0) {
+                merged[distinct] = cluster;
+                mergedWeights[distinct++] = weights[cluster];
+            } else {
+                mergedWeights[target] += weights[cluster];
+            }
+        }
+
+        Integer[] ranks = new Integer[distinct];
+        for (int d = 0; d < distinct; d++) {
+            ranks[d] = d;
+        }
+        Arrays.sort(ranks, (d1, d2) -> Integer.compare(mergedWeights[d2], mergedWeights[d1]));
+
+        int kept = Math.min(size, distinct);
+        int keptSamples = 0;
+        for (int d = 0; d < kept; d++) {
+            keptSamples += mergedWeights[ranks[d]];
+        }
+
+        int[] paletteColors = new int[kept];
+        float[] paletteWeights = new float[kept];
+        for (int d = 0; d < kept; d++) {
+            paletteColors[d] = representatives[merged[ranks[d]]];
+            paletteWeights[d] = (float) mergedWeights[ranks[d]] / keptSamples;
+        }
+
+        LOGGER.debug("Quantized {} samples of {} colors into {} clusters", total, count, distinct);
+
+        return new ColorPalette(paletteColors, paletteWeights);
+    }
+
+    /**
+     * Key of the cached palettes, which depend on the settings of the quantization.
+     */
+    private String paletteKey(int size) {
+        return "local." + size + "." + maxDimension + "." + clusters + "." + iterations + "." + mergeDistance;
+    }
+
+    /**
+     * Picks the initial centroids: the most sampled color first, then every time the color that is the furthest
+     * from the centroids already picked, weighted by its number of samples.
+     */
+    private static float[][] seed(float[][] labs, int[] samples, int k) {
+        float[][] centroids = new float[k][];
+        float[] distances = new float[labs.length];
+        Arrays.fill(distances, Float.MAX_VALUE);
+
+        int next = 0;
+        for (int c = 1; c < labs.length; c++) {
+            if (samples[c] > samples[next]) {
+                next = c;
+            }
+        }
+
+        for (int cluster = 0; cluster < k; cluster++) {
+            centroids[cluster] = labs[next].clone();
+            double best = -1;
+            for (int c = 0; c < labs.length; c++) {
+                distances[c] = Math.min(distances[c], distanceSq(centroids[cluster], labs[c]));
+                double score = (double) distances[c] * samples[c];
+                if (score > best) {
+                    best = score;
+                    next = c;
+                }
+            }
+        }
+        return centroids;
+    }
+
+    private static int closest(float[][] centroids, float[] lab) {
+        int closest = 0;
+        float best = Float.MAX_VALUE;
+        for (int cluster = 0; cluster < centroids.length; cluster++) {
+            float distance = distanceSq(centroids[cluster], lab);
+            if (distance < best) {
+                best = distance;
+                closest = cluster;
+            }
+        }
+        return closest;
+    }
+
+    private static float distanceSq(float[] lab1, float[] lab2) {
+        float dl = lab1[0] - lab2[0];
+        float da = lab1[1] - lab2[1];
+        float db = lab1[2] - lab2[2];
+        return dl * dl + da * da + db * db;
+    }
+
+    /**
+     * Waits for the download of an image.
+     * @param filePath the file path to the image.
+     * @param download the download started by the ImageFetcher.
+     * @return the downloaded image.
+     * @throws ResourceNotFoundException if the image could not be downloaded, whatever the failure.
+     */
+    private FetchedImage fetchImage(String filePath, CompletableFuture<FetchedImage> download)
+            throws ResourceNotFoundException {
+        try {
+            return download.join();
+        } catch (RuntimeException e) {
+            Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+            if (cause instanceof ResourceNotFoundException) {
+                throw (ResourceNotFoundException) cause;
+            }
+            LOGGER.error("Error occurred loading the image resource {}... Error: {}", filePath, cause.getMessage());
+            throw new ResourceNotFoundException(filePath);
+        }
+    }
+
+    /**
+     * Decodes the image.
+     * @param filePath the path to the image file.
+     * @param content the content of the image.
+     * @return the decoded image
+     * @throws ResourceNotFoundException if the image is not in a format ImageIO can decode.
+     */
+    private BufferedImage readImage(String filePath, byte[] content) throws ResourceNotFoundException {
+        try {
+            BufferedImage image = ImageIO.read(new ByteArrayInputStream(content));
+            if (image != null) {
+                return image;
+            }
+            LOGGER.error("Could not decode the image resource {}", filePath);
+        } catch (IOException e) {
+            LOGGER.error("Error occurred decoding the image resource... Error: {}", e.getMessage());
+        }
+        throw new ResourceNotFoundException(filePath);
+    }
+}
@@ -1,32 +1,58 @@
 package com.rmeunier.colormatchapi.service.impl;
 
+import com.rmeunier.colormatchapi.dao.ProductColorNeighbourRepository;
 import com.rmeunier.colormatchapi.dao.ProductRepository;
 import com.rmeunier.colormatchapi.exception.ColorMissingException;
 import com.rmeunier.colormatchapi.exception.ProductNotFoundException;
 import com.rmeunier.colormatchapi.exception.ResourceNotFoundException;
+import com.rmeunier.colormatchapi.model.ColorPalette;
 import com.rmeunier.colormatchapi.model.GenderId;
 import com.rmeunier.colormatchapi.model.Product;
+import com.rmeunier.colormatchapi.model.ProductColorNeighbour;
 import com.rmeunier.colormatchapi.model.Schema;
+import com.rmeunier.colormatchapi.service.ColorDatabaseSearch;
+import com.rmeunier.colormatchapi.service.ColorIndex;
+import com.rmeunier.colormatchapi.service.ColorMatch;
 import com.rmeunier.colormatchapi.service.ColorProximity;
+import com.rmeunier.colormatchapi.service.ColorSearchCache;
+import com.rmeunier.colormatchapi.service.ColorSearchCacheStats;
+import com.rmeunier.colormatchapi.service.ColorSearchOptions;
 import com.rmeunier.colormatchapi.service.IProductService;
 import com.rmeunier.colormatchapi.service.IVisionService;
+import com.rmeunier.colormatchapi.service.PaletteIndex;
+import com.rmeunier.colormatchapi.service.ProductCache;
+import com.rmeunier.colormatchapi.service.ProductCacheStats;
 import org.apache.commons.lang3.EnumUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.batch.core.BatchStatus;
 import org.springframework.batch.core.Job;
+import org.springframework.batch.core.JobExecution;
+import org.springframework.batch.core.JobInstance;
 import org.springframework.batch.core.JobParameters;
 import org.springframework.batch.core.JobParametersBuilder;
 import org.springframework.batch.core.JobParametersInvalidException;
+import org.springframework.batch.core.explore.JobExplorer;
 import org.springframework.batch.core.launch.JobLauncher;
 import org.springframework.batch.core.repository.JobExecutionAlreadyRunningException;
 import org.springframework.batch.core.repository.JobInstanceAlreadyCompleteException;
 import org.springframework.batch.core.repository.JobRestartException;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.PageImpl;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Pageable;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
 
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import java.time.Instant;
 import java.util.*;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 @Service
 public class ProductService implements IProductService {
@@ -40,9 +66,36 @@ public class ProductService implements IProductService {
 
     private IVisionService visionService;
 
+    @Autowired
+    private ColorIndex colorIndex;
+
     @Autowired
     private ColorProximity colorProximity;
 
+    @Autowired
+    private ColorDatabaseSearch colorDatabaseSearch;
+
+    @Autowired
+    private ColorSearchCache colorSearchCache;
+
+    @Autowired
+    private PaletteIndex paletteIndex;
+
+    @Autowired
+    private ProductCache productCache;
+
+    @Autowired
+    private ProductColorNeighbourRepository neighbourRepository;
+
+    @Value("${color-search.engine:KDTREE}")
+    private ColorIndex.SearchEngine searchEngine;
+
+    @Value("${color-neighbours.k:50}")
+    private int neighboursK;
+
+    @Value("${color-palette.size:5}")
+    private int paletteSize;
+
     @Autowired
     private JobLauncher jobLauncher;
 
@@ -52,6 +105,15 @@ public class ProductService implements IProductService {
     @Autowired
     private Job domColorJob;
 
+    @Autowired
+    private Job colorNeighboursJob;
+
+    @Autowired
+    private JobExplorer jobExplorer;
+
+    @PersistenceContext
+    private EntityManager entityManager;
+
     @Autowired
     public ProductService(ProductRepository productRepository, IVisionService visionService) {
         this.productRepository = productRepository;
@@ -63,10 +125,57 @@ public class ProductService implements IProductService {
         return productRepository.findAll();
     }
 
+    /**
+     * Retrieves a page of products ordered by id, starting after the given id.
+     *
+     * @param after the id of the last product of the previous page, null for the first page
+     * @param limit the maximum number of products to retrieve
+     * @return the products of the page
+     */
+    @Override
+    public List<Product> findPage(String after, int limit) {
+        Pageable pageable = PageRequest.of(0, limit);
+        return after == null
+                ? productRepository.findAllByOrderByIdAsc(pageable)
+                : productRepository.findByIdGreaterThanOrderByIdAsc(after, pageable);
+    }
+
+    /**
+     * Passes every product, ordered by id, to the given action, in constant memory:
+     * the products are read from a database cursor, and detached once the action is done with them.
+     *
+     * @param action the action to run on each product
+     */
+    @Override
+    @Transactional(readOnly = true)
+    public void forEachProduct(Consumer<Product> action) {
+        try (Stream<Product> products = productRepository.streamAllByOrderByIdAsc()) {
+            products.forEach(product -> {
+                action.accept(product);
+                entityManager.detach(product);
+            });
+        }
+    }
+
+    /**
+     * Retrieves a product by id, from the product cache if possible.
+     *
+     * @param id the id of the product
+     * @return the product
+     * @throws ProductNotFoundException if no product has this id
+     */
     @Override
     public Product findById(String id) {
-        return productRepository.findById(id)
+        Product cached = productCache.get(id);
+        if (cached != null) {
+            return cached;
+        }
+
+        long version = productCache.version();
+        Product product = productRepository.findById(id)
                 .orElseThrow(() -> new ProductNotFoundException(id));
+        productCache.put(product, version);
+        return product;
     }
 
     @Override
@@ -163,18 +272,70 @@ public class ProductService implements IProductService {
     }
 
     /**
-     * Find a single product's dominant color and persist it to database.
+     * Get the palette of a single product.
+     * Checks first if the palette exists for current product.
+     *
+     * @param product the product to get the palette for
+     * @return the palette of the product's image, with at most color-palette.size colors
+     */
+    @Override
+    public ColorPalette findPalette(Product product) throws ResourceNotFoundException {
+        if (product.getPalette() != null) {
+            LOGGER.info("Palette already exists for this product: {}", product.getId());
+            return product.getPalette();
+        }
+
+        LOGGER.info("Starting Vision API to find palette for product: {}", product.getId());
+        return visionService.loadPaletteForImage(product.getPhoto(), Schema.HTTPS, paletteSize);
+    }
+
+    /**
+     * Get the palettes of several products, with batched Vision API calls for the products that have none yet.
+     *
+     * @param products the products to get the palettes for
+     * @return the palettes in the order of the products, null for the products whose image could not be analyzed
+     */
+    @Override
+    public List<ColorPalette> findPalettes(List<? extends Product> products) {
+        List<ColorPalette> palettes = new ArrayList<>(products.size());
+        List<Integer> missing = new ArrayList<>();
+        List<String> photos = new ArrayList<>();
+        for (Product product : products) {
+            if (product.getPalette() == null && product.getPhoto() != null) {
+                missing.add(palettes.size());
+                photos.add(product.getPhoto());
+            }
+            palettes.add(product.getPalette());
+        }
+
+        if (!photos.isEmpty()) {
+            LOGGER.info("Starting Vision API to find palettes for {} products", photos.size());
+            List<ColorPalette> loaded = visionService.loadPalettesForImages(photos, Schema.HTTPS, paletteSize);
+            for (int i = 0; i < missing.size(); i++) {
+                palettes.set(missing.get(i), loaded.get(i));
+            }
+        }
+
+        return palettes;
+    }
+
+    /**
+     * Find a single product's dominant color and palette, and persist them to database.
+     * Both come from the same Vision API call, the dominant color being the first color of the palette.
+     * An existing dominant color is kept.
      *
      * @param product the product to find the dominant color of
      * @return the dominant color RGB vector
      */
     public int[] findDominantColorAndSave(Product product) {
-        int[] domColor = findDominantColor(product);
+        ColorPalette palette = findPalette(product);
 
-        if (domColor == null) {
+        if (palette == null || palette.size() == 0) {
             throw new ColorMissingException("Could not find dominant color for product: " + product.getId());
         }
 
+        int[] domColor = domColorExists(product) ? product.getDominantColor() : palette.getDominantColor();
+        product.setPalette(palette);
         addDomColorToDb(product, domColor);
         return domColor;
     }
@@ -198,36 +359,211 @@ public class ProductService implements IProductService {
         }
     }
 
+    /**
+     * Calls the Spring Batch job computing the closest products of every product into the product_color_neighbours
+     * table. An incremental run only recomputes the products whose neighbours may have changed since the start
+     * of the last completed run, or every product if there is none.
+     *
+     * @param incremental whether to only recompute the products affected by the color changes since the last run
+     */
+    @Override
+    public void computeColorNeighbours(boolean incremental) {
+        long since = incremental ? lastColorNeighboursRun() : 0;
+        LOGGER.info("Starting to compute color neighbours, since: {}", since);
+
+        try {
+            JobParameters jobParameters = new JobParametersBuilder()
+                    .addLong("colorNeighboursBatchJobId", System.currentTimeMillis())
+                    .addLong("since", since)
+                    .toJobParameters();
+            jobLauncher.run(colorNeighboursJob, jobParameters);
+        } catch (JobExecutionAlreadyRunningException | JobRestartException
+                | JobInstanceAlreadyCompleteException | JobParametersInvalidException e) {
+            LOGGER.error("Batch computing color neighbours could not be started! Error: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * @return the start time in epoch millis of the last completed colorNeighboursJob run, 0 if there is none
+     */
+    private long lastColorNeighboursRun() {
+        long last = 0;
+        for (JobInstance instance : jobExplorer.getJobInstances(colorNeighboursJob.getName(), 0, 100)) {
+            for (JobExecution execution : jobExplorer.getJobExecutions(instance)) {
+                if (execution.getStatus() == BatchStatus.COMPLETED && execution.getStartTime() != null) {
+                    last = Math.max(last, execution.getStartTime().getTime());
+                }
+            }
+        }
+        return last;
+    }
+
     /**
      * Finds an n-element list of products that have the closest dominant color to reference product's dominant color.
-     * It filters the products from the list that have a null element.
+     * The ranking is done on the ColorIndex, which holds the precomputed L*a*b* values of all products
+     * that have a dominant color, then only the n matching products are loaded from the database.
+     * With the DATABASE search engine, the ranking is done by PostgreSQL instead, always exactly.
      *
-     * @param color the reference product's dominant color RGB vector
-     * @param n     the number of items to retrieve
+     * @param product the reference product, left out of the results
+     * @param n       the number of items to retrieve
+     * @param options the search options
      * @return the n-long list of products that are closest in color proximity to the reference color
      */
-    private List<Product> findProductsOfClosestColor(String id, int[] color, int n) {
-        List<Product> products = this.findAll();
-
-        products = products.stream()
-                .filter(product -> product.getDominantColor() != null)
-                .sorted((o1, o2) -> {
-                    int[] domColorProd1 = o1.getDominantColor();
-                    int[] domColorProd2 = o2.getDominantColor();
-
-                    double colorDistance1 = Math.abs(colorProximity.proximity(color, domColorProd1));
-                    double colorDistance2 = Math.abs(colorProximity.proximity(color, domColorProd2));
-
-                    return Double.compare(colorDistance1, colorDistance2);
-                })
-                // filtering out original, reference product from the list
-                .filter(product -> !id.equals(product.getId()))
-                .limit(n)
+    private List<Product> findProductsOfClosestColor(Product product, int n, ColorSearchOptions options) {
+        List<Product> precomputed = findPrecomputedNeighbours(product, n, options);
+        if (precomputed != null) {
+            return precomputed;
+        }
+
+        int lab = colorProximity.labOf(product.getDominantRgb());
+        return findProductsOfClosestLab(product.getId(), lab, n, options);
+    }
+
+    /**
+     * Looks up the closest products of a product in the precomputed product_color_neighbours table,
+     * for exact, unfiltered CIE76 searches of up to color-neighbours.k products.
+     * The rows are only used while no color they depend on has changed since they were computed: the color
+     * of the reference product, of its neighbours, and of any product now within the distance of its n-th
+     * neighbour.
+     *
+     * @param product the reference product
+     * @param n       the number of items to retrieve
+     * @param options the search options
+     * @return the n closest products, or null if they have not all been precomputed or are outdated
+     */
+    private List<Product> findPrecomputedNeighbours(Product product, int n, ColorSearchOptions options) {
+        if (n > neighboursK || options.getMode() != ColorSearchOptions.Mode.EXACT
+                || options.getMetric() != ColorSearchOptions.Metric.CIE76 || options.hasFilters()
+                || product.getLabL() == null) {
+            return null;
+        }
+
+        List<ProductColorNeighbour> neighbours = neighbourRepository.findFirstNeighbours(product.getId(), n);
+        if (neighbours.size() < n) {
+            return null;
+        }
+
+        // colors written shortly before the computation may have committed after it
+        Instant computedAt = null;
+        for (ProductColorNeighbour neighbour : neighbours) {
+            if (neighbour.getComputedAt() == null) {
+                return null;
+            }
+            if (computedAt == null || neighbour.getComputedAt().isBefore(computedAt)) {
+                computedAt = neighbour.getComputedAt();
+            }
+        }
+        Instant watermark = computedAt.minus(ProductColorNeighbourRepository.COMMIT_MARGIN);
+        if (isColorChangedAfter(product, watermark)) {
+            return null;
+        }
+        float radius = (float) neighbours.get(n - 1).getDistance();
+        if (productRepository.existsChangedWithinLab(product.getLabL(), product.getLabA(), product.getLabB(),
+                radius, product.getId(), watermark)) {
+            return null;
+        }
+
+        List<String> ids = neighbours.stream()
+                .map(ProductColorNeighbour::getNeighbourId)
                 .collect(Collectors.toList());
+        Map<String, Product> productsById = loadProductsById(ids);
+
+        // neighbours deleted, uncolored or recolored since the last run make the whole list outdated
+        List<Product> products = ids.stream()
+                .map(productsById::get)
+                .filter(neighbour -> neighbour != null && domColorExists(neighbour)
+                        && !isColorChangedAfter(neighbour, watermark))
+                .collect(Collectors.toList());
+        return products.size() == n ? products : null;
+    }
+
+    private static boolean isColorChangedAfter(Product product, Instant watermark) {
+        // products colored before the change time was recorded have not changed since
+        return product.getColorUpdatedAt() != null && product.getColorUpdatedAt().isAfter(watermark);
+    }
 
+    /**
+     * Finds an n-element list of products that have the closest dominant color to a reference L*a*b color.
+     * The ids of the results are cached, so a repeated search only loads the products by id.
+     *
+     * @param id      the id of a product to leave out of the results, can be null
+     * @param lab     the reference packed L*a*b color
+     * @param n       the number of items to retrieve
+     * @param options the search options
+     * @return the n-long list of products that are closest in color proximity to the reference color
+     */
+    private List<Product> findProductsOfClosestLab(String id, int lab, int n, ColorSearchOptions options) {
+        String key = ColorSearchCache.key(id, lab, n, options);
+        List<String> cachedIds = colorSearchCache.get(key);
+        if (cachedIds != null) {
+            Map<String, Product> productsById = loadProductsById(cachedIds);
+            return cachedIds.stream()
+                    .map(productsById::get)
+                    .filter(Objects::nonNull)
+                    .collect(Collectors.toList());
+        }
+
+        long version = colorSearchCache.version();
+        List<Product> products;
+        if (searchEngine == ColorIndex.SearchEngine.DATABASE) {
+            products = colorDatabaseSearch.findClosestToLab(lab, n, id, options);
+        } else {
+            products = loadProducts(colorIndex.findClosestToLab(lab, n, id, options));
+        }
+
+        colorSearchCache.put(key, products.stream()
+                .map(Product::getId)
+                .collect(Collectors.toList()), version);
         return products;
     }
 
+    /**
+     * Loads the products of the given color matches from the database, keeping the order of the matches.
+     * Products that have been deleted since the index was built are left out.
+     *
+     * @param matches the color matches, closest first
+     * @return the list of matching products in the same order
+     */
+    private List<Product> loadProducts(List<ColorMatch> matches) {
+        Map<String, Product> productsById = loadProductsById(matches.stream()
+                .map(ColorMatch::getId)
+                .collect(Collectors.toList()));
+
+        return toProducts(matches, productsById);
+    }
+
+    /**
+     * Loads products by id, taking the cached ones from the product cache and the others in a single query.
+     */
+    private Map<String, Product> loadProductsById(Collection<String> ids) {
+        Map<String, Product> productsById = new HashMap<>();
+        List<String> missingIds = new ArrayList<>();
+        for (String id : ids) {
+            Product cached = productCache.get(id);
+            if (cached != null) {
+                productsById.put(id, cached);
+            } else {
+                missingIds.add(id);
+            }
+        }
+
+        if (!missingIds.isEmpty()) {
+            long version = productCache.version();
+            for (Product product : productRepository.findAllById(missingIds)) {
+                productsById.put(product.getId(), product);
+                productCache.put(product, version);
+            }
+        }
+        return productsById;
+    }
+
+    private List<Product> toProducts(List<ColorMatch> matches, Map<String, Product> productsById) {
+        return matches.stream()
+                .map(match -> productsById.get(match.getId()))
+                .filter(Objects::nonNull)
+                .collect(Collectors.toList());
+    }
+
     /**
      * Starts algorithm to find the n-length list of products that have the closest color to the reference
      * product's dominant color. Also checks if the given product's dominant color is not null.
@@ -237,13 +573,176 @@ public class ProductService implements IProductService {
      * @return the n-long list of Products containing the results
      */
     public List<Product> getProductsOfColorLike(Product product, int n) {
-        int[] domColor = product.getDominantColor();
+        return getProductsOfColorLike(product, n, new ColorSearchOptions());
+    }
+
+    /**
+     * Starts algorithm to find the n-length list of products that have the closest color to the reference
+     * product's dominant color, using the given search options.
+     *
+     * @param product the reference product to check the color based on
+     * @param n       the number of items to return
+     * @param options the search options, e.g. for an approximate search
+     * @return the n-long list of Products containing the results
+     */
+    @Override
+    public List<Product> getProductsOfColorLike(Product product, int n, ColorSearchOptions options) {
+        if (!domColorExists(product)) {
+            throw new ColorMissingException("No dominant color exists for product: " + product.getId());
+        }
+
+        return findProductsOfClosestColor(product, n, options);
+    }
+
+    /**
+     * Finds the n-length list of products whose palette is the most similar to the reference product's palette,
+     * which suits striped and printed products better than their single dominant color.
+     *
+     * @param product the reference product to check the palette based on
+     * @param n       the number of items to return
+     * @return the n-long list of Products containing the results, most similar first
+     */
+    @Override
+    public List<Product> getProductsOfPaletteLike(Product product, int n) {
+        if (product.getPalette() == null) {
+            throw new ColorMissingException("No palette exists for product: " + product.getId());
+        }
 
+        return loadProducts(paletteIndex.findClosest(product.getPalette(), n, product.getId()));
+    }
+
+    /**
+     * Finds the n-length list of products that have the closest color to an arbitrary RGB color,
+     * without looking up any reference product.
+     *
+     * @param packedRgb the reference color as 0xRRGGBB
+     * @param n         the number of items to return
+     * @param options   the search options
+     * @return the n-long list of Products containing the results
+     */
+    @Override
+    public List<Product> getProductsNearColor(int packedRgb, int n, ColorSearchOptions options) {
+        return findProductsOfClosestLab(null, colorProximity.labOf(packedRgb), n, options);
+    }
+
+    /**
+     * Finds the n-length list of products that have the closest color to an arbitrary L*a*b color,
+     * without looking up any reference product.
+     *
+     * @param packedLab the reference packed L*a*b color
+     * @param n         the number of items to return
+     * @param options   the search options
+     * @return the n-long list of Products containing the results
+     */
+    @Override
+    public List<Product> getProductsNearLab(int packedLab, int n, ColorSearchOptions options) {
+        return findProductsOfClosestLab(null, packedLab, n, options);
+    }
+
+    /**
+     * Finds the n closest products for several references at once: products given by id, and arbitrary colors.
+     * The reference products are loaded in a single query, the rankings share one pass over the color index,
+     * and all resulting products are loaded in a single query.
+     * References that do not exist or have no dominant color get an empty list.
+     *
+     * @param ids    the ids of the reference products
+     * @param colors arbitrary reference colors as 0xRRGGBB, keyed by the name to return them under
+     * @param n      the number of items to return per reference
+     * @return the n-long lists of closest Products, keyed by reference product id or color name
+     */
+    @Override
+    public Map<String, List<Product>> getColorNeighbours(List<String> ids, Map<String, Integer> colors, int n) {
+        Map<String, List<Product>> neighbours = new LinkedHashMap<>();
+        List<String> keys = new ArrayList<>();
+        List<Integer> labs = new ArrayList<>();
+        List<String> excludedIds = new ArrayList<>();
+
+        Map<String, Product> references = loadProductsById(ids);
+        for (String id : ids) {
+            Product reference = references.get(id);
+            if (reference == null || !domColorExists(reference)) {
+                neighbours.put(id, new ArrayList<>());
+                continue;
+            }
+            keys.add(id);
+            labs.add(colorProximity.labOf(reference.getDominantRgb()));
+            excludedIds.add(id);
+        }
+
+        colors.forEach((key, packedRgb) -> {
+            keys.add(key);
+            labs.add(colorProximity.labOf(packedRgb));
+            excludedIds.add(null);
+        });
+
+        if (searchEngine == ColorIndex.SearchEngine.DATABASE) {
+            for (int i = 0; i < keys.size(); i++) {
+                neighbours.put(keys.get(i), colorDatabaseSearch.findClosestToLab(labs.get(i), n,
+                        excludedIds.get(i), new ColorSearchOptions()));
+            }
+            return neighbours;
+        }
+
+        List<List<ColorMatch>> matches = colorIndex.findClosestToLabs(
+                labs.stream().mapToInt(Integer::intValue).toArray(), excludedIds.toArray(new String[0]), n);
+
+        Map<String, Product> productsById = loadProductsById(matches.stream()
+                .flatMap(List::stream)
+                .map(ColorMatch::getId)
+                .collect(Collectors.toSet()));
+
+        for (int i = 0; i < keys.size(); i++) {
+            neighbours.put(keys.get(i), toProducts(matches.get(i), productsById));
+        }
+        return neighbours;
+    }
+
+    /**
+     * Finds a page of the products whose dominant color is within a color distance of a reference L*a*b color,
+     * closest first. Only the products of the requested page are loaded.
+     *
+     * @param packedLab  the reference packed L*a*b color
+     * @param distance   the maximum color distance (CIE76 delta E)
+     * @param excludedId the id of a product to leave out of the results, can be null
+     * @param pageable   the page to return
+     * @return the page of Products, with the total number of products within the distance
+     */
+    @Override
+    public Page<Product> getProductsWithinColorDistance(int packedLab, double distance, String excludedId,
+                                                        Pageable pageable) {
+        if (searchEngine == ColorIndex.SearchEngine.DATABASE) {
+            return colorDatabaseSearch.findWithinDistance(packedLab, distance, excludedId, pageable);
+        }
+
+        Page<ColorMatch> matches = colorIndex.findWithinDistance(packedLab, distance, excludedId, pageable);
+        return new PageImpl<>(loadProducts(matches.getContent()), pageable, matches.getTotalElements());
+    }
+
+    /**
+     * Measures how many of the exact n closest products an approximate search with the given probe finds.
+     *
+     * @param product the reference product
+     * @param n       the number of items to compare
+     * @param probe   the probe of the approximate search
+     * @return the recall of the approximate search, between 0 and 1
+     */
+    @Override
+    public double getColorSearchRecall(Product product, int n, int probe) {
         if (!domColorExists(product)) {
             throw new ColorMissingException("No dominant color exists for product: " + product.getId());
         }
 
-        return findProductsOfClosestColor(product.getId(), domColor, n);
+        return colorIndex.recall(product.getDominantColor(), n, product.getId(), probe);
+    }
+
+    @Override
+    public ColorSearchCacheStats getColorSearchCacheStats() {
+        return colorSearchCache.stats();
+    }
+
+    @Override
+    public ProductCacheStats getProductCacheStats() {
+        return productCache.stats();
     }
 
     /**
@@ -1,35 +1,54 @@
 package com.rmeunier.colormatchapi.service.impl;
 
 import com.google.cloud.vision.v1.*;
+import com.google.protobuf.ByteString;
 import com.google.type.Color;
 import com.rmeunier.colormatchapi.exception.ColorMissingException;
 import com.rmeunier.colormatchapi.exception.ResourceNotFoundException;
+import com.rmeunier.colormatchapi.model.ColorPalette;
 import com.rmeunier.colormatchapi.model.Schema;
+import com.rmeunier.colormatchapi.service.ColorProximity;
+import com.rmeunier.colormatchapi.service.FetchedImage;
 import com.rmeunier.colormatchapi.service.IVisionService;
+import com.rmeunier.colormatchapi.service.ImageCache;
+import com.rmeunier.colormatchapi.service.ImageFetcher;
+import com.rmeunier.colormatchapi.service.VisionBatchClient;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.cloud.gcp.vision.CloudVisionTemplate;
-import org.springframework.core.io.InputStreamResource;
+import org.springframework.core.io.ByteArrayResource;
 import org.springframework.core.io.Resource;
-import org.springframework.core.io.ResourceLoader;
 import org.springframework.stereotype.Service;
 
-import javax.net.ssl.HttpsURLConnection;
-import java.io.IOException;
-import java.io.InputStream;
-import java.net.URL;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
 @Service
+@ConditionalOnProperty(name = "vision.provider", havingValue = "google", matchIfMissing = true)
 public class VisionService implements IVisionService {
 
     @Autowired
     private CloudVisionTemplate cloudVisionTemplate;
 
     @Autowired
-    private ResourceLoader resourceLoader;
+    private VisionBatchClient visionBatchClient;
+
+    @Autowired
+    private ImageFetcher imageFetcher;
+
+    @Autowired
+    private ImageCache imageCache;
+
+    // images sent per Vision API call, at most VisionBatchClient.MAX_BATCH_SIZE
+    @Value("${vision.batch-size:16}")
+    private int batchSize;
 
     private static final Logger LOGGER = LoggerFactory.getLogger(VisionService.class);
 
@@ -44,46 +63,160 @@ public class VisionService implements IVisionService {
      * @throws ResourceNotFoundException if the image resource cannot be loaded.
      */
     public int[] loadDominantColorForImage(String filePath, Schema schema) throws ResourceNotFoundException {
-        Resource imgResource = getImageResourceFromUrl(filePath, schema);
+        int[] rgb = loadPaletteForImage(filePath, schema, 1).getDominantColor();
 
-        if (imgResource == null) {
-            throw new ResourceNotFoundException(filePath);
-        }
+        LOGGER.debug("Dominant color: {}", Arrays.toString(rgb));
 
-        if (!imgResource.exists()) {
-            LOGGER.error("An error occurred during loading of image resource!");
-            throw new ResourceNotFoundException(filePath);
+        return rgb;
+    }
+
+    /**
+     * Finds and loads the image file as a resource and runs the Google Vision API on it to retreive the image properties.
+     * From the image properties, it gets the main colors of the image back, in the order returned by the API,
+     * weighted by the fraction of the image's pixels they cover.
+     *
+     * @param filePath the file path to the image
+     * @param schema the way the HTTP connection should be handled
+     * @param size the maximum number of colors to keep
+     * @return the palette of the image, with its weights normalized to sum up to 1
+     * @throws ResourceNotFoundException if the image resource cannot be loaded.
+     */
+    public ColorPalette loadPaletteForImage(String filePath, Schema schema, int size)
+            throws ResourceNotFoundException {
+        FetchedImage image = fetchImage(filePath, imageFetcher.fetch(filePath, schema));
+        ColorPalette cached = imageCache.getPalette(image.getHash(), paletteKey(size));
+        if (cached != null) {
+            LOGGER.debug("Palette of unchanged image reused: {}", cached);
+            return cached;
         }
 
+        Resource imgResource = new ByteArrayResource(image.getContent());
+
         AnnotateImageResponse response = this.cloudVisionTemplate
                 .analyzeImage(imgResource, Feature.Type.IMAGE_PROPERTIES);
 
         ImageProperties imageProperties = response.getImagePropertiesAnnotation();
-        Color dominantColor = getDominantColors(imageProperties);
+        ColorPalette palette = getPalette(imageProperties, size);
 
-        if (dominantColor == null) {
+        if (palette == null) {
             LOGGER.error("Could not load dominant color!");
             throw new ColorMissingException();
         }
 
-        int red = (int) dominantColor.getRed();
-        int green = (int) dominantColor.getGreen();
-        int blue = (int) dominantColor.getBlue();
+        LOGGER.debug("Palette: {}", palette);
+        imageCache.putPalette(image.getHash(), paletteKey(size), palette);
 
-        int[] rgb = {red, green, blue};
+        return palette;
+    }
 
-        LOGGER.debug("Dominant color: {}", Arrays.toString(rgb));
+    /**
+     * Downloads the images concurrently and loads their palettes, sending them to the Vision API by batches of
+     * vision.batch-size images instead of one call per image.
+     * An image that cannot be loaded or analyzed gets no palette, without failing the other images of its batch.
+     * The images whose content has already been analyzed get their cached palette, without calling the API.
+     *
+     * @param filePaths the file paths to the images
+     * @param schema the way the HTTP connection should be handled
+     * @param size the maximum number of colors to keep per image
+     * @return the palettes in the order of the file paths, null for the images that failed
+     */
+    public List<ColorPalette> loadPalettesForImages(List<String> filePaths, Schema schema, int size) {
+        List<ColorPalette> palettes = new ArrayList<>(Collections.nCopies(filePaths.size(), null));
+        int limit = Math.min(Math.max(batchSize, 1), VisionBatchClient.MAX_BATCH_SIZE);
+        List<AnnotateImageRequest> requests = new ArrayList<>(limit);
+        List<Integer> positions = new ArrayList<>(limit);
+        List<String> hashes = new ArrayList<>(limit);
 
-        return rgb;
+        // every download is started first, so the next images arrive while a batch is being analyzed
+        List<CompletableFuture<FetchedImage>> downloads = new ArrayList<>(filePaths.size());
+        for (String filePath : filePaths) {
+            downloads.add(imageFetcher.fetch(filePath, schema));
+        }
+
+        for (int i = 0; i < filePaths.size(); i++) {
+            FetchedImage image;
+            try {
+                image = fetchImage(filePaths.get(i), downloads.get(i));
+            } catch (ResourceNotFoundException e) {
+                continue;
+            }
+
+            ColorPalette cached = imageCache.getPalette(image.getHash(), paletteKey(size));
+            if (cached != null) {
+                palettes.set(i, cached);
+                continue;
+            }
+
+            requests.add(AnnotateImageRequest.newBuilder()
+                    .setImage(Image.newBuilder().setContent(ByteString.copyFrom(image.getContent())))
+                    .addFeatures(Feature.newBuilder().setType(Feature.Type.IMAGE_PROPERTIES))
+                    .build());
+            positions.add(i);
+            hashes.add(image.getHash());
+
+            if (requests.size() == limit) {
+                annotateImages(requests, positions, hashes, filePaths, size, palettes);
+                requests.clear();
+                positions.clear();
+                hashes.clear();
+            }
+        }
+
+        if (!requests.isEmpty()) {
+            annotateImages(requests, positions, hashes, filePaths, size, palettes);
+        }
+
+        return palettes;
+    }
+
+    /**
+     * Sends a batch of images to the Vision API and stores the palette of every image at its position.
+     * The responses come in the order of the requests, so the n-th response belongs to the n-th position.
+     */
+    private void annotateImages(List<AnnotateImageRequest> requests, List<Integer> positions, List<String> hashes,
+                                List<String> filePaths, int size, List<ColorPalette> palettes) {
+        List<AnnotateImageResponse> responses;
+        try {
+            responses = visionBatchClient.batchAnnotateImages(requests);
+        } catch (RuntimeException e) {
+            LOGGER.error("Vision API call for {} images failed! Error: {}", requests.size(), e.getMessage());
+            return;
+        }
+
+        if (responses.size() != requests.size()) {
+            LOGGER.error("Vision API returned {} responses for {} images!", responses.size(), requests.size());
+        }
+
+        for (int r = 0; r < Math.min(responses.size(), positions.size()); r++) {
+            AnnotateImageResponse response = responses.get(r);
+            int position = positions.get(r);
+
+            if (response.hasError()) {
+                LOGGER.error("Could not analyze image {}! Error: {}", filePaths.get(position),
+                        response.getError().getMessage());
+                continue;
+            }
+
+            ColorPalette palette = getPalette(response.getImagePropertiesAnnotation(), size);
+            palettes.set(position, palette);
+            if (palette != null) {
+                imageCache.putPalette(hashes.get(r), paletteKey(size), palette);
+            }
+        }
+    }
+
+    private static String paletteKey(int size) {
+        return "google." + size;
     }
 
     /**
-     * Retrieves the dominant color from the colors list returned by the Vision API.
-     * The dominant color is the first color of the list.
+     * Retrieves the first colors of the colors list returned by the Vision API, with their pixel fractions as weights.
+     * If the API gives no pixel fraction, the scores of the colors are used as weights instead.
      * @param imageProperties the properties of the image already loaded by the Vision API.
-     * @return the Color object containing the primary dominant color.
+     * @param size the maximum number of colors to keep
+     * @return the palette, or null if the API returned no colors.
      */
-    private Color getDominantColors(ImageProperties imageProperties) {
+    private ColorPalette getPalette(ImageProperties imageProperties, int size) {
         DominantColorsAnnotation colors = imageProperties.getDominantColors();
         List<ColorInfo> colorInfos = colors.getColorsList();
 
@@ -92,30 +225,51 @@ public class VisionService implements IVisionService {
             return null;
         }
 
-        return colorInfos.get(0).getColor();
+        int count = Math.min(Math.max(size, 1), colorInfos.size());
+        int[] packedColors = new int[count];
+        float[] fractions = new float[count];
+        float[] scores = new float[count];
+        float fractionSum = 0;
+        float scoreSum = 0;
+
+        for (int i = 0; i < count; i++) {
+            ColorInfo colorInfo = colorInfos.get(i);
+            Color color = colorInfo.getColor();
+            packedColors[i] = ColorProximity.packRgb(new int[] {
+                    (int) color.getRed(), (int) color.getGreen(), (int) color.getBlue()});
+            fractions[i] = colorInfo.getPixelFraction();
+            scores[i] = colorInfo.getScore();
+            fractionSum += fractions[i];
+            scoreSum += scores[i];
+        }
+
+        float[] weights = fractionSum > 0 ? fractions : scores;
+        float sum = fractionSum > 0 ? fractionSum : scoreSum;
+        for (int i = 0; i < count; i++) {
+            weights[i] = sum > 0 ? weights[i] / sum : 1f / count;
+        }
+
+        return new ColorPalette(packedColors, weights);
     }
 
     /**
-     * Loads the resource using an input stream and a HTTPS connection.
-     * @param filePath the path to the image file.
-     * @param schema the HTTP request schema, in this case, HTTPS.
-     * @return the image resource loaded from InputStream.
+     * Waits for the download of an image.
+     * @param filePath the file path to the image.
+     * @param download the download started by the ImageFetcher.
+     * @return the content of the image.
+     * @throws ResourceNotFoundException if the image could not be downloaded, whatever the failure.
      */
-    private Resource getImageResourceFromUrl(String filePath, Schema schema) {
-        String fullFilePath = schema.label + filePath;
-        InputStreamResource imgResource = null;
-
+    private FetchedImage fetchImage(String filePath, CompletableFuture<FetchedImage> download)
+            throws ResourceNotFoundException {
         try {
-            URL url = new URL(fullFilePath);
-            HttpsURLConnection conn = (HttpsURLConnection) url.openConnection();
-            InputStream in = conn.getInputStream();
-
-            imgResource = new InputStreamResource(in);
-
-        } catch (IOException e) {
-            LOGGER.error("Error occurred loading the image resource... Error: {}", e.getMessage());
+            return download.join();
+        } catch (RuntimeException e) {
+            Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+            if (cause instanceof ResourceNotFoundException) {
+                throw (ResourceNotFoundException) cause;
+            }
+            LOGGER.error("Error occurred loading the image resource {}... Error: {}", filePath, cause.getMessage());
+            throw new ResourceNotFoundException(filePath);
         }
-
-        return imgResource;
     }
 }
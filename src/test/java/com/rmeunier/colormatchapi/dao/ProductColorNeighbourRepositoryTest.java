@@ -0,0 +1,137 @@
+package com.rmeunier.colormatchapi.dao;
+
+import com.rmeunier.colormatchapi.model.Product;
+import com.rmeunier.colormatchapi.model.ProductColorNeighbour;
+import com.rmeunier.colormatchapi.service.ColorIndex;
+import com.rmeunier.colormatchapi.service.ColorProximity;
+import com.rmeunier.colormatchapi.service.ColorSearchCache;
+import com.rmeunier.colormatchapi.service.PaletteIndex;
+import com.rmeunier.colormatchapi.service.ProductCache;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.jdbc.AutoConfigureTestDatabase;
+import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
+import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.context.annotation.Import;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+import org.testcontainers.containers.PostgreSQLContainer;
+import org.testcontainers.junit.jupiter.Container;
+import org.testcontainers.junit.jupiter.Testcontainers;
+
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Runs the native queries of the repository against PostgreSQL, with the schema generated from the entities.
+ */
+@DataJpaTest(properties = "spring.jpa.hibernate.ddl-auto=create-drop")
+@AutoConfigureTestDatabase(replace = AutoConfigureTestDatabase.Replace.NONE)
+@Import(ColorProximity.class)
+@Testcontainers(disabledWithoutDocker = true)
+class ProductColorNeighbourRepositoryTest {
+
+    private static final int K = 2;
+
+    @Container
+    private static final PostgreSQLContainer<?> POSTGRES = new PostgreSQLContainer<>("postgres:13-alpine");
+
+    @DynamicPropertySource
+    static void datasource(DynamicPropertyRegistry registry) {
+        registry.add("spring.datasource.url", POSTGRES::getJdbcUrl);
+        registry.add("spring.datasource.username", POSTGRES::getUsername);
+        registry.add("spring.datasource.password", POSTGRES::getPassword);
+    }
+
+    // dependencies of ProductColorIndexListener, whose actions only run after a commit anyway
+    @MockBean
+    private ColorIndex colorIndex;
+
+    @MockBean
+    private PaletteIndex paletteIndex;
+
+    @MockBean
+    private ColorSearchCache colorSearchCache;
+
+    @MockBean
+    private ProductCache productCache;
+
+    @Autowired
+    private ProductRepository productRepository;
+
+    @Autowired
+    private ProductColorNeighbourRepository productColorNeighbourRepository;
+
+    @Test
+    void findsEveryProductWhoseNeighboursMayHaveChanged() throws InterruptedException {
+        // far from the changed color, with close enough neighbours: not recomputed
+        save("U", 0x000000);
+        save("T", 0xffffff);
+        // its second neighbour is farther than the changed color
+        save("S", 0x808080);
+        // a neighbour changed its color
+        save("P", 0x0000ff);
+        // a neighbour was deleted
+        save("Q", 0x00ff00);
+        // a neighbour has no color anymore
+        save("V", 0xffff00);
+        save("N", null);
+        // less than K neighbours
+        save("R", 0xff0000);
+        save("X", 0x102030);
+
+        Instant computedAt = Instant.now();
+        productColorNeighbourRepository.saveAll(Arrays.asList(
+                new ProductColorNeighbour("U", 0, "S", 0.5, computedAt),
+                new ProductColorNeighbour("U", 1, "T", 1, computedAt),
+                new ProductColorNeighbour("T", 0, "U", 1, computedAt),
+                new ProductColorNeighbour("T", 1, "S", 1, computedAt),
+                new ProductColorNeighbour("S", 0, "U", 1, computedAt),
+                new ProductColorNeighbour("S", 1, "T", 100, computedAt),
+                new ProductColorNeighbour("P", 0, "X", 1, computedAt),
+                new ProductColorNeighbour("P", 1, "T", 1, computedAt),
+                new ProductColorNeighbour("Q", 0, "GONE", 1, computedAt),
+                new ProductColorNeighbour("Q", 1, "T", 1, computedAt),
+                new ProductColorNeighbour("V", 0, "N", 1, computedAt),
+                new ProductColorNeighbour("V", 1, "T", 1, computedAt),
+                new ProductColorNeighbour("R", 0, "T", 1, computedAt)));
+
+        Thread.sleep(10);
+        Product changed = productRepository.findById("X").orElseThrow(IllegalStateException::new);
+        changed.setDominantRgb(0x808081);
+        productRepository.saveAndFlush(changed);
+
+        Set<String> ids = new HashSet<>(productColorNeighbourRepository.findIdsToRecompute(computedAt, K));
+
+        assertEquals(new HashSet<>(Arrays.asList("X", "P", "Q", "V", "R", "S")), ids);
+    }
+
+    @Test
+    void findsNothingWithoutChanges() {
+        save("A", 0x336699);
+        save("B", 0x336698);
+        save("C", 0x336697);
+
+        Instant computedAt = Instant.now();
+        productColorNeighbourRepository.saveAll(Arrays.asList(
+                new ProductColorNeighbour("A", 0, "B", 1, computedAt),
+                new ProductColorNeighbour("A", 1, "C", 2, computedAt),
+                new ProductColorNeighbour("B", 0, "A", 1, computedAt),
+                new ProductColorNeighbour("B", 1, "C", 1, computedAt),
+                new ProductColorNeighbour("C", 0, "B", 1, computedAt),
+                new ProductColorNeighbour("C", 1, "A", 2, computedAt)));
+        productColorNeighbourRepository.flush();
+
+        assertEquals(0, productColorNeighbourRepository.findIdsToRecompute(computedAt, K).size());
+    }
+
+    private void save(String id, Integer dominantRgb) {
+        Product product = new Product(id, "Product " + id, null, null, null, null, null);
+        product.setDominantRgb(dominantRgb);
+        productRepository.saveAndFlush(product);
+    }
+}
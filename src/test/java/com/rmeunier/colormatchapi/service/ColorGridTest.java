@@ -0,0 +1,116 @@
+package com.rmeunier.colormatchapi.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ColorGridTest {
+
+    private static final int SIZE = 5000;
+
+    private final float[] l = new float[SIZE];
+
+    private final float[] a = new float[SIZE];
+
+    private final float[] b = new float[SIZE];
+
+    ColorGridTest() {
+        Random random = new Random(13);
+        for (int i = 0; i < SIZE; i++) {
+            l[i] = random.nextInt(256);
+            a[i] = random.nextInt(256) - 128;
+            b[i] = random.nextInt(256) - 128;
+        }
+    }
+
+    @Test
+    void probingEveryRingMatchesBruteForce() {
+        ColorGrid grid = new ColorGrid(l, a, b, 8);
+        Random random = new Random(4);
+        for (int query = 0; query < 100; query++) {
+            float[] ref = randomPoint(random);
+            int excluded = random.nextBoolean() ? random.nextInt(SIZE) : -1;
+            int k = 1 + random.nextInt(30);
+
+            TopKSelector expected = bruteForce(ref, excluded, k);
+            TopKSelector actual = new TopKSelector(k);
+            grid.nearest(ref[0], ref[1], ref[2], excluded, Integer.MAX_VALUE, actual);
+
+            int count = expected.sort();
+            assertEquals(count, actual.sort());
+            for (int position = 0; position < count; position++) {
+                assertEquals(expected.indexAt(position), actual.indexAt(position));
+                assertEquals(expected.distanceAt(position), actual.distanceAt(position));
+            }
+        }
+    }
+
+    @Test
+    void smallProbeStillReturnsKCloseEnoughPoints() {
+        ColorGrid grid = new ColorGrid(l, a, b, 8);
+        Random random = new Random(6);
+        for (int query = 0; query < 100; query++) {
+            float[] ref = randomPoint(random);
+
+            TopKSelector expected = bruteForce(ref, -1, 10);
+            TopKSelector actual = new TopKSelector(10);
+            grid.nearest(ref[0], ref[1], ref[2], -1, 1, actual);
+
+            // an approximate result is never closer than the exact one at the same rank
+            int count = expected.sort();
+            assertEquals(count, actual.sort());
+            for (int position = 0; position < count; position++) {
+                assertEquals(distanceSq(actual.indexAt(position), ref), actual.distanceAt(position));
+                assertTrue(actual.distanceAt(position) >= expected.distanceAt(position));
+            }
+        }
+    }
+
+    @Test
+    void subsetGridOnlyReturnsIndexedPoints() {
+        int[] indices = new int[SIZE / 2];
+        for (int i = 0; i < indices.length; i++) {
+            indices[i] = 2 * i + 1;
+        }
+        ColorGrid grid = new ColorGrid(l, a, b, indices, 8);
+
+        TopKSelector actual = new TopKSelector(50);
+        grid.nearest(128, 0, 0, -1, Integer.MAX_VALUE, actual);
+
+        int count = actual.sort();
+        assertEquals(50, count);
+        for (int position = 0; position < count; position++) {
+            assertEquals(1, actual.indexAt(position) % 2);
+        }
+    }
+
+    @Test
+    void rejectsNonPositiveCellSize() {
+        assertThrows(IllegalArgumentException.class, () -> new ColorGrid(l, a, b, 0));
+    }
+
+    private TopKSelector bruteForce(float[] ref, int excluded, int k) {
+        TopKSelector selector = new TopKSelector(k);
+        for (int i = 0; i < SIZE; i++) {
+            if (i != excluded) {
+                selector.offer(distanceSq(i, ref), i);
+            }
+        }
+        return selector;
+    }
+
+    private static float[] randomPoint(Random random) {
+        return new float[] {random.nextInt(256), random.nextInt(256) - 128, random.nextInt(256) - 128};
+    }
+
+    private double distanceSq(int i, float[] ref) {
+        double dl = l[i] - ref[0];
+        double da = a[i] - ref[1];
+        double db = b[i] - ref[2];
+        return dl * dl + da * da + db * db;
+    }
+}
@@ -0,0 +1,96 @@
+package com.rmeunier.colormatchapi.service;
+
+import com.rmeunier.colormatchapi.model.GenderId;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class ColorIndexFileTest {
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void readsBackWhatWasWritten() throws IOException {
+        Instant catalogVersion = Instant.ofEpochMilli(1634567890123L);
+        ColorIndexFile written = new ColorIndexFile(catalogVersion,
+                new String[] {"L1212-00-132", "L1212-00-133", "Pull ray\u00e9"},
+                new float[] {0, 128.5f, 255},
+                new float[] {-128, 0, 127},
+                new float[] {12, -64, 3},
+                new GenderId[] {GenderId.MAN, null, GenderId.UNI},
+                new String[] {"Manches courtes", null, "Manches courtes"},
+                new String[] {"coton", "laine m\u00e9rinos", null});
+
+        Path path = directory.resolve("snapshots").resolve("color-index.bin");
+        written.write(path);
+        ColorIndexFile read = ColorIndexFile.read(path);
+
+        assertEquals(catalogVersion, read.getCatalogVersion());
+        assertArrayEquals(written.getIds(), read.getIds());
+        assertArrayEquals(written.getL(), read.getL());
+        assertArrayEquals(written.getA(), read.getA());
+        assertArrayEquals(written.getB(), read.getB());
+        assertArrayEquals(written.getGenderIds(), read.getGenderIds());
+        assertArrayEquals(written.getSleeves(), read.getSleeves());
+        assertArrayEquals(written.getCompositions(), read.getCompositions());
+    }
+
+    @Test
+    void readsBackAnEmptySnapshot() throws IOException {
+        Path path = directory.resolve("empty.bin");
+        new ColorIndexFile(Instant.EPOCH, new String[0], new float[0], new float[0], new float[0],
+                new GenderId[0], new String[0], new String[0]).write(path);
+
+        ColorIndexFile read = ColorIndexFile.read(path);
+
+        assertEquals(Instant.EPOCH, read.getCatalogVersion());
+        assertEquals(0, read.getIds().length);
+    }
+
+    @Test
+    void replacesThePreviousSnapshot() throws IOException {
+        Path path = directory.resolve("color-index.bin");
+        new ColorIndexFile(Instant.EPOCH, new String[] {"A"}, new float[] {1}, new float[] {2}, new float[] {3},
+                new GenderId[] {null}, new String[] {null}, new String[] {null}).write(path);
+        new ColorIndexFile(Instant.EPOCH, new String[] {"B", "C"}, new float[] {1, 4}, new float[] {2, 5},
+                new float[] {3, 6}, new GenderId[] {null, null}, new String[] {null, null},
+                new String[] {null, null}).write(path);
+
+        assertArrayEquals(new String[] {"B", "C"}, ColorIndexFile.read(path).getIds());
+        try (Stream<Path> files = Files.list(directory)) {
+            assertEquals(1, files.count());
+        }
+    }
+
+    @Test
+    void rejectsTruncatedFiles() throws IOException {
+        Path path = directory.resolve("color-index.bin");
+        new ColorIndexFile(Instant.EPOCH, new String[] {"L1212-00-132"}, new float[] {50}, new float[] {0},
+                new float[] {0}, new GenderId[] {GenderId.WOM}, new String[] {"Manches longues"},
+                new String[] {"coton"}).write(path);
+        try (RandomAccessFile file = new RandomAccessFile(path.toFile(), "rw")) {
+            file.setLength(file.length() - 4);
+        }
+
+        assertThrows(IOException.class, () -> ColorIndexFile.read(path));
+    }
+
+    @Test
+    void rejectsOtherFiles() throws IOException {
+        Path path = directory.resolve("other.bin");
+        Files.write(path, "not a color index".getBytes());
+
+        assertThrows(IOException.class, () -> ColorIndexFile.read(path));
+    }
+}
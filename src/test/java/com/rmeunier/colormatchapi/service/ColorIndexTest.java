@@ -0,0 +1,234 @@
+package com.rmeunier.colormatchapi.service;
+
+import com.rmeunier.colormatchapi.dao.ProductRepository;
+import com.rmeunier.colormatchapi.model.GenderId;
+import com.rmeunier.colormatchapi.model.ProductColorView;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class ColorIndexTest {
+
+    private static final String[] SLEEVES = {"Manches courtes", "Manches longues", null};
+
+    private static final String[] COMPOSITIONS = {"coton", "polyester", "lin"};
+
+    private final ColorProximity colorProximity = new ColorProximity();
+
+    private final List<ProductColorView> products = new ArrayList<>();
+
+    private ColorIndex colorIndex;
+
+    @BeforeEach
+    void setUp() {
+        Random random = new Random(17);
+        for (int i = 0; i < 3000; i++) {
+            GenderId genderId = random.nextInt(6) == 0 ? null : GenderId.values()[random.nextInt(4)];
+            products.add(new ColorRow(String.format("P%05d", i), random.nextInt(0x1000000), genderId,
+                    SLEEVES[random.nextInt(SLEEVES.length)], COMPOSITIONS[random.nextInt(COMPOSITIONS.length)]));
+        }
+
+        ProductRepository productRepository = mock(ProductRepository.class);
+        when(productRepository.findByDominantRgbIsNotNullOrderByIdAsc()).thenReturn(products);
+
+        colorIndex = new ColorIndex(productRepository, colorProximity);
+        ReflectionTestUtils.setField(colorIndex, "engine", ColorIndex.SearchEngine.KDTREE);
+        ReflectionTestUtils.setField(colorIndex, "cellSize", 8f);
+        ReflectionTestUtils.setField(colorIndex, "parallelism", 1);
+        ReflectionTestUtils.setField(colorIndex, "parallelThreshold", 100000);
+        // few candidates per result, so the exact re-ranking has to widen its search
+        ReflectionTestUtils.setField(colorIndex, "rerankFactor", 2);
+        ReflectionTestUtils.setField(colorIndex, "compactionThreshold", 4096);
+        ReflectionTestUtils.setField(colorIndex, "snapshotFile", "");
+        colorIndex.init();
+    }
+
+    @AfterEach
+    void tearDown() {
+        colorIndex.destroy();
+    }
+
+    @Test
+    void cie76SearchMatchesBruteForce() {
+        Random random = new Random(1);
+        for (int query = 0; query < 50; query++) {
+            int lab = colorProximity.labOf(random.nextInt(0x1000000));
+            String excludedId = products.get(random.nextInt(products.size())).getId();
+            ColorSearchOptions options = new ColorSearchOptions();
+
+            assertSameMatches(bruteForce(lab, 15, excludedId, options),
+                    colorIndex.findClosestToLab(lab, 15, excludedId, options));
+        }
+    }
+
+    @Test
+    void cie94RerankMatchesBruteForce() {
+        Random random = new Random(2);
+        for (int query = 0; query < 50; query++) {
+            int lab = colorProximity.labOf(random.nextInt(0x1000000));
+            ColorSearchOptions options = new ColorSearchOptions();
+            options.setMetric(ColorSearchOptions.Metric.CIE94);
+
+            assertSameMatches(bruteForce(lab, 20, null, options),
+                    colorIndex.findClosestToLab(lab, 20, null, options));
+        }
+    }
+
+    @Test
+    void filteredCie94RerankMatchesBruteForce() {
+        Random random = new Random(3);
+        for (int query = 0; query < 50; query++) {
+            int lab = colorProximity.labOf(random.nextInt(0x1000000));
+            ColorSearchOptions options = new ColorSearchOptions();
+            options.setMetric(ColorSearchOptions.Metric.CIE94);
+            options.setGenderId(GenderId.values()[random.nextInt(4)]);
+            options.setSleeve(SLEEVES[random.nextInt(2)]);
+
+            assertSameMatches(bruteForce(lab, 10, null, options),
+                    colorIndex.findClosestToLab(lab, 10, null, options));
+        }
+    }
+
+    @Test
+    void filteredRerankReturnsEveryMatchWhenFewerThanN() {
+        int lab = colorProximity.labOf(0x336699);
+        ColorSearchOptions options = new ColorSearchOptions();
+        options.setMetric(ColorSearchOptions.Metric.CIE94);
+        options.setGenderId(GenderId.MAN);
+        options.setSleeve("Manches courtes");
+        options.setComposition("lin");
+
+        List<ColorMatch> expected = bruteForce(lab, products.size(), null, options);
+        assertTrue(expected.size() < 1000);
+        assertSameMatches(expected, colorIndex.findClosestToLab(lab, 1000, null, options));
+    }
+
+    @Test
+    void filterMatchingNothingFindsNothing() {
+        ColorSearchOptions options = new ColorSearchOptions();
+        options.setMetric(ColorSearchOptions.Metric.CIE94);
+        options.setComposition("soie");
+
+        assertTrue(colorIndex.findClosestToLab(colorProximity.labOf(0xff8800), 10, null, options).isEmpty());
+    }
+
+    @Test
+    void withinDistancePagesMatchBruteForce() {
+        Random random = new Random(4);
+        for (int query = 0; query < 20; query++) {
+            int lab = colorProximity.labOf(random.nextInt(0x1000000));
+            String excludedId = products.get(random.nextInt(products.size())).getId();
+            double distance = 10 + random.nextInt(40);
+
+            List<ColorMatch> expected = new ArrayList<>();
+            for (ColorMatch match : bruteForce(lab, products.size(), excludedId, new ColorSearchOptions())) {
+                if (match.getDistance() <= distance) {
+                    expected.add(match);
+                }
+            }
+
+            for (int page = 0; page < 4; page++) {
+                Page<ColorMatch> matches = colorIndex.findWithinDistance(lab, distance, excludedId,
+                        PageRequest.of(page, 7));
+                assertEquals(expected.size(), matches.getTotalElements());
+                int from = Math.min(page * 7, expected.size());
+                assertSameMatches(expected.subList(from, Math.min(from + 7, expected.size())),
+                        matches.getContent());
+            }
+        }
+    }
+
+    @Test
+    void withinDistancePageBeyondTheMatchesIsEmpty() {
+        Page<ColorMatch> matches = colorIndex.findWithinDistance(colorProximity.labOf(0x808080), 5, null,
+                PageRequest.of(1000, 50));
+
+        assertTrue(matches.getContent().isEmpty());
+        assertEquals(bruteForce(colorProximity.labOf(0x808080), products.size(), null, new ColorSearchOptions())
+                .stream().filter(match -> match.getDistance() <= 5).count(), matches.getTotalElements());
+    }
+
+    /**
+     * Ranks every product passing the filters of the options by the metric of the options, then by id.
+     */
+    private List<ColorMatch> bruteForce(int lab, int n, String excludedId, ColorSearchOptions options) {
+        ColorDistance colorDistance = options.getMetric().getDistance();
+        List<ColorMatch> matches = new ArrayList<>();
+        for (ProductColorView product : products) {
+            if (!product.getId().equals(excludedId)
+                    && options.matches(product.getGenderId(), product.getSleeve(), product.getComposition())) {
+                int productLab = colorProximity.labOf(product.getDominantRgb());
+                matches.add(new ColorMatch(product.getId(), colorDistance.distance(lab, productLab)));
+            }
+        }
+        matches.sort(Comparator.comparingDouble(ColorMatch::getDistance).thenComparing(ColorMatch::getId));
+        return matches.subList(0, Math.min(n, matches.size()));
+    }
+
+    private static void assertSameMatches(List<ColorMatch> expected, List<ColorMatch> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.get(i).getId(), actual.get(i).getId());
+            assertEquals(expected.get(i).getDistance(), actual.get(i).getDistance(), 1e-9);
+        }
+    }
+
+    private static final class ColorRow implements ProductColorView {
+
+        private final String id;
+
+        private final Integer dominantRgb;
+
+        private final GenderId genderId;
+
+        private final String sleeve;
+
+        private final String composition;
+
+        private ColorRow(String id, Integer dominantRgb, GenderId genderId, String sleeve, String composition) {
+            this.id = id;
+            this.dominantRgb = dominantRgb;
+            this.genderId = genderId;
+            this.sleeve = sleeve;
+            this.composition = composition;
+        }
+
+        @Override
+        public String getId() {
+            return id;
+        }
+
+        @Override
+        public Integer getDominantRgb() {
+            return dominantRgb;
+        }
+
+        @Override
+        public GenderId getGenderId() {
+            return genderId;
+        }
+
+        @Override
+        public String getSleeve() {
+            return sleeve;
+        }
+
+        @Override
+        public String getComposition() {
+            return composition;
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package com.rmeunier.colormatchapi.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class ColorKdTreeTest {
+
+    private static final int SIZE = 5000;
+
+    private final float[] l = new float[SIZE];
+
+    private final float[] a = new float[SIZE];
+
+    private final float[] b = new float[SIZE];
+
+    ColorKdTreeTest() {
+        Random random = new Random(11);
+        for (int i = 0; i < SIZE; i++) {
+            // integer coordinates like the index's, so that many points are at equal distances
+            l[i] = random.nextInt(256);
+            a[i] = random.nextInt(256) - 128;
+            b[i] = random.nextInt(256) - 128;
+        }
+    }
+
+    @Test
+    void nearestMatchesBruteForce() {
+        ColorKdTree tree = new ColorKdTree(l, a, b);
+        Random random = new Random(5);
+        for (int query = 0; query < 200; query++) {
+            float[] ref = randomPoint(random);
+            int excluded = random.nextBoolean() ? random.nextInt(SIZE) : -1;
+            int k = 1 + random.nextInt(50);
+
+            TopKSelector expected = new TopKSelector(k);
+            for (int i = 0; i < SIZE; i++) {
+                if (i != excluded) {
+                    expected.offer(distanceSq(i, ref), i);
+                }
+            }
+            TopKSelector actual = new TopKSelector(k);
+            tree.nearest(ref[0], ref[1], ref[2], excluded, actual);
+
+            assertSameSelection(expected, actual);
+        }
+    }
+
+    @Test
+    void nearestOnlyReturnsTheIndexedSubset() {
+        List<Integer> subset = new ArrayList<>();
+        for (int i = 0; i < SIZE; i += 3) {
+            subset.add(i);
+        }
+        Collections.shuffle(subset, new Random(3));
+        int[] indices = subset.stream().mapToInt(Integer::intValue).toArray();
+        ColorKdTree tree = new ColorKdTree(l, a, b, indices);
+
+        Random random = new Random(8);
+        for (int query = 0; query < 100; query++) {
+            float[] ref = randomPoint(random);
+
+            TopKSelector expected = new TopKSelector(20);
+            for (int i : indices) {
+                expected.offer(distanceSq(i, ref), i);
+            }
+            TopKSelector actual = new TopKSelector(20);
+            tree.nearest(ref[0], ref[1], ref[2], -1, actual);
+
+            assertSameSelection(expected, actual);
+        }
+    }
+
+    @Test
+    void withinRadiusMatchesBruteForce() {
+        ColorKdTree tree = new ColorKdTree(l, a, b);
+        Random random = new Random(9);
+        for (int query = 0; query < 100; query++) {
+            float[] ref = randomPoint(random);
+            int excluded = random.nextInt(SIZE);
+            double radiusSq = Math.pow(random.nextInt(40), 2);
+
+            List<Integer> expected = new ArrayList<>();
+            for (int i = 0; i < SIZE; i++) {
+                if (i != excluded && distanceSq(i, ref) <= radiusSq) {
+                    expected.add(i);
+                }
+            }
+            List<Integer> actual = new ArrayList<>();
+            tree.withinRadius(ref[0], ref[1], ref[2], radiusSq, excluded, actual::add);
+            Collections.sort(actual);
+
+            assertEquals(expected, actual);
+        }
+    }
+
+    @Test
+    void emptyTreeFindsNothing() {
+        ColorKdTree tree = new ColorKdTree(new float[0], new float[0], new float[0]);
+        TopKSelector selector = new TopKSelector(5);
+        tree.nearest(50, 0, 0, -1, selector);
+        assertEquals(0, selector.size());
+    }
+
+    private static float[] randomPoint(Random random) {
+        return new float[] {random.nextInt(256), random.nextInt(256) - 128, random.nextInt(256) - 128};
+    }
+
+    private double distanceSq(int i, float[] ref) {
+        double dl = l[i] - ref[0];
+        double da = a[i] - ref[1];
+        double db = b[i] - ref[2];
+        return dl * dl + da * da + db * db;
+    }
+
+    private static void assertSameSelection(TopKSelector expected, TopKSelector actual) {
+        int count = expected.sort();
+        assertEquals(count, actual.sort());
+        for (int position = 0; position < count; position++) {
+            assertEquals(expected.indexAt(position), actual.indexAt(position));
+            assertEquals(expected.distanceAt(position), actual.distanceAt(position));
+        }
+    }
+}
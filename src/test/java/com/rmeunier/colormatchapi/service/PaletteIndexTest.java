@@ -0,0 +1,185 @@
+package com.rmeunier.colormatchapi.service;
+
+import com.rmeunier.colormatchapi.dao.ProductRepository;
+import com.rmeunier.colormatchapi.model.ColorPalette;
+import com.rmeunier.colormatchapi.model.ProductPaletteView;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class PaletteIndexTest {
+
+    private final ColorProximity colorProximity = new ColorProximity();
+
+    // the palettes in the database, by product id
+    private final TreeMap<String, PaletteRow> palettes = new TreeMap<>();
+
+    private final List<PaletteIndex> indexes = new ArrayList<>();
+
+    private final Random random = new Random(21);
+
+    private PaletteIndex paletteIndex;
+
+    @BeforeEach
+    void setUp() {
+        for (int i = 0; i < 400; i++) {
+            String id = String.format("P%04d", i);
+            palettes.put(id, randomPalette(id));
+        }
+        paletteIndex = newIndex();
+    }
+
+    @AfterEach
+    void tearDown() {
+        indexes.forEach(PaletteIndex::destroy);
+    }
+
+    @Test
+    void appliedWritesMatchARebuiltIndex() {
+        // built before the writes
+        paletteIndex.findClosest(randomPalette("REF").toPalette(), 10, null);
+
+        List<String> ids = new ArrayList<>(palettes.keySet());
+        for (int write = 0; write < 150; write++) {
+            String id = ids.get(random.nextInt(ids.size()));
+            PaletteRow row = palettes.get(id);
+            switch (write % 5) {
+                case 0:
+                    row = randomPalette(id);
+                    palettes.put(id, row);
+                    paletteIndex.update(id, row.colors, row.weights);
+                    break;
+                case 1:
+                    // a write leaving the palette as it is
+                    if (row != null) {
+                        paletteIndex.update(id, row.colors.clone(), row.weights.clone());
+                    }
+                    break;
+                case 2:
+                    palettes.remove(id);
+                    paletteIndex.update(id, null, null);
+                    break;
+                case 3:
+                    palettes.remove(id);
+                    paletteIndex.remove(id);
+                    break;
+                default:
+                    String newId = String.format("N%04d", write);
+                    PaletteRow inserted = randomPalette(newId);
+                    palettes.put(newId, inserted);
+                    paletteIndex.update(newId, inserted.colors, inserted.weights);
+                    ids.add(newId);
+            }
+        }
+
+        PaletteIndex rebuilt = newIndex();
+        List<String> remaining = new ArrayList<>(palettes.keySet());
+        for (int query = 0; query < 30; query++) {
+            ColorPalette reference = randomPalette("REF").toPalette();
+            String excludedId = remaining.get(random.nextInt(remaining.size()));
+
+            List<ColorMatch> expected = rebuilt.findClosest(reference, 20, excludedId);
+            List<ColorMatch> actual = paletteIndex.findClosest(reference, 20, excludedId);
+
+            assertEquals(expected.size(), actual.size());
+            for (int i = 0; i < expected.size(); i++) {
+                assertEquals(expected.get(i).getId(), actual.get(i).getId());
+                assertEquals(expected.get(i).getDistance(), actual.get(i).getDistance(), 1e-9);
+            }
+        }
+    }
+
+    @Test
+    void removedProductsAreNeverFound() {
+        paletteIndex.findClosest(randomPalette("REF").toPalette(), 10, null);
+        paletteIndex.remove("P0001");
+        paletteIndex.update("P0002", null, null);
+        paletteIndex.remove("UNKNOWN");
+
+        List<ColorMatch> matches = paletteIndex.findClosest(randomPalette("REF").toPalette(), 1000, null);
+
+        assertEquals(palettes.size() - 2, matches.size());
+        assertFalse(matches.stream().anyMatch(match -> match.getId().equals("P0001")
+                || match.getId().equals("P0002")));
+    }
+
+    /**
+     * Creates an index over the current palettes. The cells cover the whole L*a*b space, so every palette is a
+     * candidate and the results are exact.
+     */
+    private PaletteIndex newIndex() {
+        ProductRepository productRepository = mock(ProductRepository.class);
+        when(productRepository.findByPaletteColorsIsNotNullOrderByIdAsc())
+                .thenReturn(new ArrayList<>(palettes.values()));
+
+        PaletteIndex index = new PaletteIndex(productRepository, colorProximity);
+        ReflectionTestUtils.setField(index, "binSize", 256);
+        ReflectionTestUtils.setField(index, "candidateFactor", 1000);
+        ReflectionTestUtils.setField(index, "compactionThreshold", 1000);
+        index.init();
+        indexes.add(index);
+        return index;
+    }
+
+    private PaletteRow randomPalette(String id) {
+        int size = 3 + random.nextInt(3);
+        int[] colors = new int[size];
+        int[] weights = new int[size];
+        int left = 10000;
+        for (int i = 0; i < size; i++) {
+            colors[i] = random.nextInt(0x1000000);
+            weights[i] = i == size - 1 ? left : random.nextInt(left / 2 + 1);
+            left -= weights[i];
+        }
+        return new PaletteRow(id, colors, weights);
+    }
+
+    private static final class PaletteRow implements ProductPaletteView {
+
+        private final String id;
+
+        private final int[] colors;
+
+        private final int[] weights;
+
+        private PaletteRow(String id, int[] colors, int[] weights) {
+            this.id = id;
+            this.colors = colors;
+            this.weights = weights;
+        }
+
+        private ColorPalette toPalette() {
+            float[] paletteWeights = new float[weights.length];
+            for (int i = 0; i < weights.length; i++) {
+                paletteWeights[i] = weights[i] / 10000f;
+            }
+            return new ColorPalette(colors, paletteWeights);
+        }
+
+        @Override
+        public String getId() {
+            return id;
+        }
+
+        @Override
+        public int[] getPaletteColors() {
+            return colors;
+        }
+
+        @Override
+        public int[] getPaletteWeights() {
+            return weights;
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package com.rmeunier.colormatchapi.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TopKSelectorTest {
+
+    @Test
+    void keepsTheKSmallestInOrder() {
+        Random random = new Random(42);
+        double[] distances = new double[1000];
+        for (int i = 0; i < distances.length; i++) {
+            // few distinct values, so that ties have to be resolved by index
+            distances[i] = random.nextInt(50);
+        }
+
+        TopKSelector selector = new TopKSelector(25);
+        for (int i = 0; i < distances.length; i++) {
+            selector.offer(distances[i], i);
+        }
+
+        int[] expected = sortedIndices(distances, null);
+        assertEquals(25, selector.sort());
+        for (int position = 0; position < 25; position++) {
+            assertEquals(expected[position], selector.indexAt(position));
+            assertEquals(distances[expected[position]], selector.distanceAt(position));
+        }
+    }
+
+    @Test
+    void worstDistanceBoundsTheSelection() {
+        TopKSelector selector = new TopKSelector(2);
+        assertEquals(Double.POSITIVE_INFINITY, selector.worstDistance());
+        assertFalse(selector.isFull());
+
+        selector.offer(5, 0);
+        selector.offer(3, 1);
+        assertTrue(selector.isFull());
+        assertEquals(5, selector.worstDistance());
+
+        selector.offer(1, 2);
+        assertEquals(3, selector.worstDistance());
+
+        assertEquals(Double.NEGATIVE_INFINITY, new TopKSelector(0).worstDistance());
+    }
+
+    @Test
+    void keepsEverythingWhenFewerThanKAreOffered() {
+        TopKSelector selector = new TopKSelector(10);
+        selector.offer(2, 7);
+        selector.offer(1, 3);
+        selector.offer(2, 4);
+
+        assertEquals(3, selector.sort());
+        assertEquals(3, selector.indexAt(0));
+        assertEquals(4, selector.indexAt(1));
+        assertEquals(7, selector.indexAt(2));
+    }
+
+    @Test
+    void neverKeepsSkippedIndices() {
+        double[] distances = {4, 0, 1, 3, 2, 5};
+        BitSet skipped = new BitSet();
+        skipped.set(1);
+        skipped.set(4);
+
+        TopKSelector selector = new TopKSelector(3, skipped);
+        for (int i = 0; i < distances.length; i++) {
+            selector.offer(distances[i], i);
+        }
+
+        int[] expected = sortedIndices(distances, skipped);
+        assertEquals(3, selector.sort());
+        for (int position = 0; position < 3; position++) {
+            assertEquals(expected[position], selector.indexAt(position));
+        }
+    }
+
+    @Test
+    void mergesPartialSelections() {
+        Random random = new Random(7);
+        double[] distances = new double[500];
+        TopKSelector left = new TopKSelector(10);
+        TopKSelector right = new TopKSelector(10);
+        for (int i = 0; i < distances.length; i++) {
+            distances[i] = random.nextDouble();
+            (i < 250 ? left : right).offer(distances[i], i);
+        }
+
+        right.offerAll(left);
+
+        int[] expected = sortedIndices(distances, null);
+        assertEquals(10, right.sort());
+        for (int position = 0; position < 10; position++) {
+            assertEquals(expected[position], right.indexAt(position));
+        }
+    }
+
+    @Test
+    void rejectsNegativeK() {
+        assertThrows(IllegalArgumentException.class, () -> new TopKSelector(-1));
+    }
+
+    private static int[] sortedIndices(double[] distances, BitSet skipped) {
+        List<Integer> indices = new ArrayList<>();
+        for (int i = 0; i < distances.length; i++) {
+            if (skipped == null || !skipped.get(i)) {
+                indices.add(i);
+            }
+        }
+        indices.sort(Comparator.<Integer>comparingDouble(i -> distances[i]).thenComparingInt(i -> i));
+        return indices.stream().mapToInt(Integer::intValue).toArray();
+    }
+}